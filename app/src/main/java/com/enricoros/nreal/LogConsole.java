@@ -0,0 +1,171 @@
+package com.enricoros.nreal;
+
+import android.content.res.ColorStateList;
+import android.view.Choreographer;
+import android.view.LayoutInflater;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Diagnostic log with bounded memory: the last entries are kept in a fixed-capacity ring and shown
+ * through a RecyclerView (only the visible rows are laid out). New entries are published to the list
+ * at most once per frame, and can be filtered by severity.
+ * Main thread only.
+ */
+public class LogConsole {
+
+  public static final int INFO = 0;
+  public static final int WARNING = 1;
+  public static final int ERROR = 2;
+
+  private final RecyclerView recyclerView;
+  private final int capacity;
+
+  // ring of entries, by sequence number (seq % capacity), with the sequence number each slot holds
+  private final long[] slotSeqs;
+  private final long[] timesMs;
+  private final byte[] severities;
+  private final String[] messages;
+  private long addedCount = 0;
+  private long publishedCount = 0;
+
+  // sequence numbers of the entries in the list (passing the filter), oldest first
+  private final long[] visibleSeqs;
+  private int visibleStart = 0;
+  private int visibleCount = 0;
+  private int minSeverity = INFO;
+
+  private boolean frameScheduled = false;
+  private final Choreographer.FrameCallback frameCallback = frameTimeNanos -> {
+    frameScheduled = false;
+    publish();
+  };
+
+  public LogConsole(@NonNull RecyclerView logRecyclerView, int maxEntries) {
+    recyclerView = logRecyclerView;
+    capacity = maxEntries;
+    slotSeqs = new long[capacity];
+    timesMs = new long[capacity];
+    severities = new byte[capacity];
+    messages = new String[capacity];
+    visibleSeqs = new long[capacity];
+    recyclerView.setAdapter(adapter);
+  }
+
+  public void log(int severity, String message) {
+    int i = (int) (addedCount % capacity);
+    slotSeqs[i] = addedCount;
+    timesMs[i] = System.currentTimeMillis();
+    severities[i] = (byte) severity;
+    messages[i] = message;
+    addedCount++;
+    if (!frameScheduled) {
+      frameScheduled = true;
+      Choreographer.getInstance().postFrameCallback(frameCallback);
+    }
+  }
+
+  public int getMinSeverity() {
+    return minSeverity;
+  }
+
+  public void setMinSeverity(int severity) {
+    minSeverity = severity;
+    // rebuild the list from the ring
+    visibleStart = 0;
+    visibleCount = 0;
+    for (long seq = Math.max(0, addedCount - capacity); seq < addedCount; seq++)
+      if (severities[(int) (seq % capacity)] >= minSeverity)
+        visibleSeqs[visibleCount++] = seq;
+    publishedCount = addedCount;
+    //noinspection NotifyDataSetChanged
+    adapter.notifyDataSetChanged();
+    scrollToEnd();
+  }
+
+  // applies the entries added since the last frame: evicted ones leave the top, new ones join the bottom
+  private void publish() {
+    boolean atEnd = !recyclerView.canScrollVertically(1);
+    long firstLiveSeq = Math.max(0, addedCount - capacity);
+
+    int removed = 0;
+    while (visibleCount > 0 && visibleSeqs[visibleStart] < firstLiveSeq) {
+      visibleStart = (visibleStart + 1) % capacity;
+      visibleCount--;
+      removed++;
+    }
+    int inserted = 0;
+    for (long seq = Math.max(publishedCount, firstLiveSeq); seq < addedCount; seq++) {
+      if (severities[(int) (seq % capacity)] >= minSeverity) {
+        visibleSeqs[(visibleStart + visibleCount) % capacity] = seq;
+        visibleCount++;
+        inserted++;
+      }
+    }
+    publishedCount = addedCount;
+
+    if (removed > 0)
+      adapter.notifyItemRangeRemoved(0, removed);
+    if (inserted > 0)
+      adapter.notifyItemRangeInserted(visibleCount - inserted, inserted);
+    if (atEnd)
+      scrollToEnd();
+  }
+
+  private void scrollToEnd() {
+    if (visibleCount > 0)
+      recyclerView.scrollToPosition(visibleCount - 1);
+  }
+
+
+  private static class EntryViewHolder extends RecyclerView.ViewHolder {
+    final TextView textView;
+    final ColorStateList infoColors; // from the theme (see item_log_entry)
+
+    EntryViewHolder(TextView view) {
+      super(view);
+      textView = view;
+      infoColors = view.getTextColors();
+    }
+  }
+
+  private final RecyclerView.Adapter<EntryViewHolder> adapter = new RecyclerView.Adapter<EntryViewHolder>() {
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+    private final Date date = new Date();
+
+    @NonNull
+    @Override
+    public EntryViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+      return new EntryViewHolder((TextView) LayoutInflater.from(parent.getContext()).inflate(R.layout.item_log_entry, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull EntryViewHolder holder, int position) {
+      long seq = visibleSeqs[(visibleStart + position) % capacity];
+      int i = (int) (seq % capacity);
+      // the slot was reused by an entry added after the last publish: this row leaves the list on the next frame
+      if (slotSeqs[i] != seq) {
+        holder.textView.setText(null);
+        return;
+      }
+      date.setTime(timesMs[i]);
+      holder.textView.setText(timeFormat.format(date) + "  " + messages[i]);
+      if (severities[i] == INFO)
+        holder.textView.setTextColor(holder.infoColors);
+      else
+        holder.textView.setTextColor(holder.textView.getResources().getColor(severities[i] == ERROR ? R.color.log_error : R.color.log_warning, holder.textView.getContext().getTheme()));
+    }
+
+    @Override
+    public int getItemCount() {
+      return visibleCount;
+    }
+  };
+}
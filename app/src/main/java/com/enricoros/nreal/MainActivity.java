@@ -6,18 +6,22 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.view.View;
 
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.enricoros.nreal.databinding.ActivityMainBinding;
 import com.enricoros.nreal.driver.ImuDataRaw;
+import com.enricoros.nreal.driver.ImuEvent;
 import com.enricoros.nreal.driver.NrealManager;
 
 public class MainActivity extends AppCompatActivity {
 
+  private static final int LOG_CAPACITY = 1000;
+  private static final int[] LOG_FILTER_LABELS = {R.string.log_filter_all, R.string.log_filter_warnings, R.string.log_filter_errors};
+
   private NrealManager nrealManager;
   private ActivityMainBinding binding;
+  private LogConsole logConsole;
   private ImuDataRaw mImuDataRaw;
 
 
@@ -27,7 +31,25 @@ public class MainActivity extends AppCompatActivity {
 
     binding = ActivityMainBinding.inflate(getLayoutInflater());
     setContentView(binding.getRoot());
-    appendLog("Welcome. Logs will appear below.\n");
+    logConsole = new LogConsole(binding.logRecyclerView, LOG_CAPACITY);
+    binding.logFilterButton.setOnClickListener(v -> {
+      // cycle: all -> warnings and errors -> errors only
+      int minSeverity = (logConsole.getMinSeverity() + 1) % LOG_FILTER_LABELS.length;
+      logConsole.setMinSeverity(minSeverity);
+      binding.logFilterButton.setText(LOG_FILTER_LABELS[minSeverity]);
+    });
+    binding.noiseButton.setOnClickListener(v -> {
+      String report = nrealManager.getNoiseCharacterizationReport();
+      if (report == null) {
+        nrealManager.startNoiseCharacterization();
+        appendLog("Noise characterization started: keep the glasses still");
+      } else {
+        nrealManager.stopNoiseCharacterization();
+        appendLog(report);
+      }
+      binding.noiseButton.setText(report == null ? R.string.noise_stop : R.string.noise_start);
+    });
+    appendLog("Welcome. Logs will appear below.");
 
     nrealManager = new NrealManager(getApplicationContext(), mNrealListener);
   }
@@ -47,6 +69,12 @@ public class MainActivity extends AppCompatActivity {
     nrealManager.closeNrealUsbDevice();
   }
 
+  @Override
+  protected void onDestroy() {
+    super.onDestroy();
+    nrealManager.release();
+  }
+
   @Override
   protected void onNewIntent(Intent intent) {
     super.onNewIntent(intent);
@@ -70,12 +98,12 @@ public class MainActivity extends AppCompatActivity {
 
     @Override
     public void onPermissionDenied() {
-      appendLog("onPermissionDenied: please grant permission");
+      appendLog(LogConsole.WARNING, "onPermissionDenied: please grant permission");
     }
 
     @Override
     public void onConnectionError(String error) {
-      appendLog("onConnectionError: " + error);
+      appendLog(LogConsole.ERROR, "onConnectionError: " + error);
     }
 
     @Override
@@ -94,18 +122,26 @@ public class MainActivity extends AppCompatActivity {
     public void onButtonPressedTemp(int buttonId, int relatedValue) {
       appendLog("onButtonPressedTemp: btn=" + buttonId + ", relatedValue=" + relatedValue);
     }
+
+    @Override
+    public void onImuEvent(ImuEvent event) {
+      appendLog(LogConsole.WARNING, "onImuEvent: " + event);
+    }
   };
 
 
   private void appendLog(String message) {
+    appendLog(LogConsole.INFO, message);
+  }
+
+  private void appendLog(int severity, String message) {
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
       if (!isUiContext()) {
-        runOnUiThread(() -> appendLog("Error: this did not come from the UI thread -- " + message));
+        runOnUiThread(() -> appendLog(LogConsole.ERROR, "Error: this did not come from the UI thread -- " + message));
         return;
       }
     }
-    binding.logTextView.append(message + "\n");
-    binding.scrollView.post(() -> binding.scrollView.fullScroll(View.FOCUS_DOWN));
+    logConsole.log(severity, message);
     updateStatus();
   }
 
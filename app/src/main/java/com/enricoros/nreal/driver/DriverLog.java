@@ -0,0 +1,55 @@
+package com.enricoros.nreal.driver;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Where the reader, the transports and the processing log to: android.util.Log on Android, the
+ * standard error stream elsewhere (desktop and server hosts), or a sink of the host's choice.
+ */
+public final class DriverLog {
+
+  public interface Sink {
+    void log(@NonNull String tag, @NonNull String message, @Nullable Throwable error);
+  }
+
+  private static volatile Sink sSink = "Dalvik".equals(System.getProperty("java.vm.name")) ? new AndroidSink() : new StandardErrorSink();
+
+  private DriverLog() {
+  }
+
+  /**
+   * Replaces the sink, e.g. with the logger of the host; set it before connecting.
+   */
+  public static void setSink(@NonNull Sink sink) {
+    sSink = sink;
+  }
+
+  public static void e(@NonNull String tag, @NonNull String message) {
+    sSink.log(tag, message, null);
+  }
+
+  public static void e(@NonNull String tag, @NonNull String message, @Nullable Throwable error) {
+    sSink.log(tag, message, error);
+  }
+
+
+  // separate classes: android.util.Log is only loaded where it exists
+  private static final class AndroidSink implements Sink {
+    @Override
+    public void log(@NonNull String tag, @NonNull String message, @Nullable Throwable error) {
+      Log.e(tag, message, error);
+    }
+  }
+
+  private static final class StandardErrorSink implements Sink {
+    @Override
+    public void log(@NonNull String tag, @NonNull String message, @Nullable Throwable error) {
+      System.err.println(tag + ": " + message);
+      if (error != null)
+        error.printStackTrace();
+    }
+  }
+}
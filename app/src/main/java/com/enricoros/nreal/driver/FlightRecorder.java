@@ -0,0 +1,172 @@
+package com.enricoros.nreal.driver;
+
+import androidx.annotation.NonNull;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Always-on circular buffer of the last reports read from the device, with their timing.
+ * Recording copies into preallocated arrays (no allocations); only serializing a dump allocates.
+ * <p>
+ * Dump format (little endian): 'NRFR' magic, version, host wall time (ms), reason (length + UTF-8),
+ * entry count, then per entry, oldest first: host receive time (ns), read wait (us), transfer
+ * result, kind, and the 64 bytes of the report. Read back with {@link #parse}.
+ * Not thread safe: record and serialize on the reader thread.
+ */
+public class FlightRecorder {
+
+  public static final byte KIND_IMU = 0;
+  public static final byte KIND_OTHER = 1;
+
+  private static final int MAGIC = 0x5246524E; // 'NRFR' in little endian
+  private static final int VERSION = 1;
+  private static final int REPORT_SIZE = 64;
+  private static final int ENTRY_SIZE = 8 + 4 + 2 + 1 + REPORT_SIZE;
+
+  private final int capacity;
+  private final byte[] reports;
+  private final long[] hostNs;
+  private final int[] waitUs;
+  private final short[] results;
+  private final byte[] kinds;
+  private int next = 0;
+  private long recorded = 0;
+
+  public FlightRecorder(int capacity) {
+    this.capacity = capacity;
+    this.reports = new byte[capacity * REPORT_SIZE];
+    this.hostNs = new long[capacity];
+    this.waitUs = new int[capacity];
+    this.results = new short[capacity];
+    this.kinds = new byte[capacity];
+  }
+
+  /**
+   * @param result  the transfer result (bytes read, or negative on error)
+   * @param nowNs   host time at the end of the read
+   * @param waitNs  time spent waiting for the read
+   */
+  public void record(byte kind, byte[] data, int result, long nowNs, long waitNs) {
+    int i = next;
+    System.arraycopy(data, 0, reports, i * REPORT_SIZE, REPORT_SIZE);
+    hostNs[i] = nowNs;
+    waitUs[i] = (int) (waitNs / 1000);
+    results[i] = (short) result;
+    kinds[i] = kind;
+    next = i + 1 == capacity ? 0 : i + 1;
+    recorded++;
+  }
+
+  public int getCount() {
+    return (int) Math.min(recorded, capacity);
+  }
+
+  /**
+   * Serializes the buffer content (oldest entry first) to the compact dump format.
+   */
+  @NonNull
+  public byte[] serialize(@NonNull String reason) {
+    byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+    int count = getCount();
+    ByteBuffer out = ByteBuffer.allocate(4 + 4 + 8 + 4 + reasonBytes.length + 4 + count * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    out.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+    out.putInt(reasonBytes.length).put(reasonBytes);
+    out.putInt(count);
+    int first = recorded > capacity ? next : 0;
+    for (int n = 0; n < count; n++) {
+      int i = (first + n) % capacity;
+      out.putLong(hostNs[i]).putInt(waitUs[i]).putShort(results[i]).put(kinds[i]);
+      out.put(reports, i * REPORT_SIZE, REPORT_SIZE);
+    }
+    return out.array();
+  }
+
+  /**
+   * Reads back a dump of {@link #serialize}.
+   *
+   * @throws IllegalArgumentException if it is not a dump of this version, or is truncated
+   */
+  @NonNull
+  public static Dump parse(@NonNull byte[] dump) {
+    ByteBuffer in = ByteBuffer.wrap(dump).order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      if (in.getInt() != MAGIC)
+        throw new IllegalArgumentException("Not a flight recorder dump");
+      int version = in.getInt();
+      if (version != VERSION)
+        throw new IllegalArgumentException("Unsupported flight recorder dump version " + version);
+      long wallTimeMs = in.getLong();
+      byte[] reasonBytes = new byte[in.getInt()];
+      in.get(reasonBytes);
+      int count = in.getInt();
+      if (count < 0 || count > in.remaining() / ENTRY_SIZE)
+        throw new IllegalArgumentException("Truncated flight recorder dump: " + count + " entries");
+      Dump out = new Dump(wallTimeMs, new String(reasonBytes, StandardCharsets.UTF_8), count);
+      for (int i = 0; i < count; i++) {
+        out.hostNs[i] = in.getLong();
+        out.waitUs[i] = in.getInt();
+        out.results[i] = in.getShort();
+        out.kinds[i] = in.get();
+        in.get(out.reports, i * REPORT_SIZE, REPORT_SIZE);
+      }
+      return out;
+    } catch (BufferUnderflowException | NegativeArraySizeException e) {
+      throw new IllegalArgumentException("Truncated flight recorder dump", e);
+    }
+  }
+
+  /**
+   * The entries of a dump, oldest first.
+   */
+  public static final class Dump {
+    public final long wallTimeMs;
+    @NonNull
+    public final String reason;
+    public final int count;
+    private final long[] hostNs;
+    private final int[] waitUs;
+    private final short[] results;
+    private final byte[] kinds;
+    private final byte[] reports;
+
+    private Dump(long wallTimeMs, @NonNull String reason, int count) {
+      this.wallTimeMs = wallTimeMs;
+      this.reason = reason;
+      this.count = count;
+      this.hostNs = new long[count];
+      this.waitUs = new int[count];
+      this.results = new short[count];
+      this.kinds = new byte[count];
+      this.reports = new byte[count * REPORT_SIZE];
+    }
+
+    public long getHostNs(int i) {
+      return hostNs[i];
+    }
+
+    public int getWaitUs(int i) {
+      return waitUs[i];
+    }
+
+    /**
+     * The transfer result: bytes read, or negative on error.
+     */
+    public int getResult(int i) {
+      return results[i];
+    }
+
+    public byte getKind(int i) {
+      return kinds[i];
+    }
+
+    /**
+     * Copies the 64 bytes of the report into out.
+     */
+    public void getReport(int i, @NonNull byte[] out) {
+      System.arraycopy(reports, i * REPORT_SIZE, out, 0, REPORT_SIZE);
+    }
+  }
+}
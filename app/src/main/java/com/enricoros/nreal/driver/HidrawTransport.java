@@ -0,0 +1,339 @@
+package com.enricoros.nreal.driver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Transport over Linux hidraw character devices (/dev/hidrawN), for desktop and server hosts: one
+ * node for the IMU interface and one for the 'other' (buttons) interface. On hidraw each read
+ * returns one input report, and writes start with the report number (0 for unnumbered reports,
+ * the byte that is missing from the commands of NrealDeviceThread).
+ * <p>
+ * Reads of a character device cannot time out, so each node is read by a pump thread, with a
+ * FileChannel into a reused direct ByteBuffer, and the reports are handed over through a ring of
+ * preallocated slots where readImu() and readOther() wait up to their timeout, like bulkTransfer.
+ * <p>
+ * Replay mode, for hardware-free runs: the nodes are files or named pipes with recorded reports
+ * (e.g. from 'cat /dev/hidrawN > imu.bin'), read as a stream of 64-byte reports; writes are dropped.
+ * Opening a named pipe waits for its writer, on the pump thread. Once all the reports are read, the
+ * stream has ended ({@link #isEndOfStream()}) and reclaim() does not restart it.
+ */
+public class HidrawTransport implements NrealTransport {
+
+  private static final String TAG = "HidrawTransport";
+
+  private static final int REPORT_SIZE = 64;
+  private static final int IMU_RING_REPORTS = 256; // ~0.25 s at 1 kHz
+  private static final int OTHER_RING_REPORTS = 16;
+  private static final long FULL_RING_PARK_NS = 1_000_000L;
+  private static final byte UNNUMBERED_REPORT = 0;
+  private static final int IMU_INTERFACE = 3;
+  private static final int OTHER_INTERFACE = 4;
+
+  private final File imuDevice;
+  private final File otherDevice;
+  private final boolean replay;
+  private final ByteBuffer commandBuffer = ByteBuffer.allocateDirect(1 + REPORT_SIZE);
+
+  private volatile ReportPump mImuPump;
+  private volatile ReportPump mOtherPump;
+  private volatile FileChannel mImuCommands;
+  private volatile boolean mClosed = false;
+
+  /**
+   * @param otherDevice can be null (no buttons)
+   * @param replay      the devices are recordings: see the class documentation
+   */
+  public HidrawTransport(@NonNull File imuDevice, @Nullable File otherDevice, boolean replay) {
+    this.imuDevice = imuDevice;
+    this.otherDevice = otherDevice;
+    this.replay = replay;
+  }
+
+  /**
+   * @return the transport (not open) for the first glasses attached to this host, or null
+   */
+  @Nullable
+  public static HidrawTransport findAttachedGlasses() {
+    File[] nodes = new File("/sys/class/hidraw").listFiles();
+    if (nodes == null)
+      return null;
+    String hidId = String.format(Locale.US, "HID_ID=0003:%08X:%08X", NrealManager.NREAL_AIR_VENDOR_ID, NrealManager.NREAL_AIR_PRODUCT_ID);
+    File imuDevice = null;
+    File otherDevice = null;
+    for (File node : nodes) {
+      try {
+        List<String> uevent = Files.readAllLines(new File(node, "device/uevent").toPath(), StandardCharsets.US_ASCII);
+        if (!uevent.contains(hidId))
+          continue;
+        for (String line : uevent) {
+          if (!line.startsWith("HID_PHYS="))
+            continue;
+          // e.g. HID_PHYS=usb-0000:00:14.0-1/input3
+          if (line.endsWith("/input" + IMU_INTERFACE))
+            imuDevice = new File("/dev", node.getName());
+          else if (line.endsWith("/input" + OTHER_INTERFACE))
+            otherDevice = new File("/dev", node.getName());
+        }
+      } catch (IOException e) {
+        DriverLog.e(TAG, "Could not read the properties of " + node.getName(), e);
+      }
+    }
+    return imuDevice != null ? new HidrawTransport(imuDevice, otherDevice, false) : null;
+  }
+
+  /**
+   * @return null on success, or the error message
+   */
+  @Nullable
+  public String open() {
+    if (!replay) {
+      // a separate channel for the commands: reads and writes of a FileChannel are serialized
+      try {
+        mImuCommands = FileChannel.open(imuDevice.toPath(), StandardOpenOption.WRITE);
+      } catch (IOException e) {
+        return "Could not open " + imuDevice + ": " + e.getMessage();
+      }
+    }
+    ReportPump imuPump = new ReportPump(imuDevice, IMU_RING_REPORTS, replay);
+    imuPump.start();
+    mImuPump = imuPump;
+    if (otherDevice != null) {
+      ReportPump otherPump = new ReportPump(otherDevice, OTHER_RING_REPORTS, replay);
+      otherPump.start();
+      mOtherPump = otherPump;
+    }
+    return null;
+  }
+
+  /**
+   * Reports lost because the reader did not keep up (the ring was full), on the current IMU pump.
+   */
+  public long getDroppedImuReports() {
+    ReportPump pump = mImuPump;
+    return pump != null ? pump.getDropped() : 0;
+  }
+
+
+  @Override
+  public int readImu(byte[] buffer, int length, int timeoutMs) {
+    ReportPump pump = mImuPump;
+    return pump != null ? pump.read(buffer, length, timeoutMs) : -1;
+  }
+
+  @Override
+  public int writeImu(byte[] buffer, int length, int timeoutMs) {
+    if (mClosed || length > REPORT_SIZE)
+      return -1;
+    if (replay)
+      return length;
+    FileChannel commands = mImuCommands;
+    if (commands == null)
+      return -1;
+    commandBuffer.clear();
+    commandBuffer.put(UNNUMBERED_REPORT).put(buffer, 0, length).flip();
+    try {
+      commands.write(commandBuffer);
+      return length;
+    } catch (IOException e) {
+      DriverLog.e(TAG, "Could not write to " + imuDevice, e);
+      return -1;
+    }
+  }
+
+  @Override
+  public int readOther(byte[] buffer, int length, int timeoutMs) {
+    ReportPump pump = mOtherPump;
+    if (pump == null) {
+      LockSupport.parkNanos(timeoutMs * 1_000_000L);
+      return -1;
+    }
+    return pump.read(buffer, length, timeoutMs);
+  }
+
+  /**
+   * Reopens the device nodes - not the recordings, which would restart from the beginning.
+   */
+  @Override
+  public boolean reclaim() {
+    if (mClosed || replay)
+      return false;
+    closeChannels();
+    return open() == null;
+  }
+
+  @Override
+  public boolean isEndOfStream() {
+    ReportPump pump = mImuPump;
+    return replay && pump != null && pump.isReadToTheEnd();
+  }
+
+  @Override
+  public void close() {
+    mClosed = true;
+    closeChannels();
+  }
+
+  private void closeChannels() {
+    ReportPump imuPump = mImuPump;
+    if (imuPump != null)
+      imuPump.close();
+    ReportPump otherPump = mOtherPump;
+    if (otherPump != null)
+      otherPump.close();
+    FileChannel commands = mImuCommands;
+    mImuCommands = null;
+    if (commands != null) {
+      try {
+        commands.close();
+      } catch (IOException e) {
+        DriverLog.e(TAG, "Could not close " + imuDevice, e);
+      }
+    }
+  }
+
+
+  /**
+   * Reads the reports of one node on its own thread, into a single-producer single-consumer ring.
+   * When the reader is a full ring behind, a device report is dropped (as hidraw does), while a
+   * recording waits.
+   */
+  private static final class ReportPump implements Runnable {
+    private final File device;
+    private final boolean stream;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(REPORT_SIZE);
+    private final byte[][] slots;
+    private final int[] slotLengths;
+
+    private volatile FileChannel mChannel;
+    private volatile long mHead = 0; // consumer
+    private volatile long mTail = 0; // pump
+    private volatile Thread mConsumer;
+    private final Thread pumpThread;
+    private volatile boolean mEnded = false;
+    private volatile boolean mEndOfFile = false;
+    private volatile boolean mClosed = false;
+    private volatile long mDropped = 0;
+
+    ReportPump(File deviceNode, int ringReports, boolean streamOfReports) {
+      device = deviceNode;
+      stream = streamOfReports;
+      slots = new byte[ringReports][REPORT_SIZE];
+      slotLengths = new int[ringReports];
+      pumpThread = new Thread(this, "NrealHidraw-" + device.getName());
+      pumpThread.setDaemon(true);
+    }
+
+    void start() {
+      pumpThread.start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        FileChannel channel = FileChannel.open(device.toPath(), StandardOpenOption.READ);
+        mChannel = channel;
+        if (mClosed) {
+          channel.close();
+          return;
+        }
+        while (true) {
+          readBuffer.clear();
+          int count;
+          do {
+            // hidraw: one report per read; recordings: until a full report
+            count = channel.read(readBuffer);
+          } while (count >= 0 && stream && readBuffer.hasRemaining());
+          if (count < 0 && readBuffer.position() < REPORT_SIZE) {
+            mEndOfFile = true;
+            break;
+          }
+          if (readBuffer.position() == 0)
+            continue;
+          long tail = mTail;
+          if (tail - mHead >= slots.length) {
+            if (!stream) {
+              mDropped++;
+              continue;
+            }
+            while (tail - mHead >= slots.length && !mClosed)
+              LockSupport.parkNanos(this, FULL_RING_PARK_NS);
+          }
+          int slot = (int) (tail % slots.length);
+          readBuffer.flip();
+          slotLengths[slot] = readBuffer.remaining();
+          readBuffer.get(slots[slot], 0, slotLengths[slot]);
+          mTail = tail + 1;
+          Thread consumer = mConsumer;
+          if (consumer != null)
+            LockSupport.unpark(consumer);
+        }
+      } catch (IOException e) {
+        if (!mClosed)
+          DriverLog.e(TAG, "Could not read from " + device, e);
+      } finally {
+        mEnded = true;
+        Thread consumer = mConsumer;
+        if (consumer != null)
+          LockSupport.unpark(consumer);
+      }
+    }
+
+    /**
+     * @return the length of the report, or -1 on timeout or once the node is closed or ended
+     */
+    int read(byte[] buffer, int length, int timeoutMs) {
+      mConsumer = Thread.currentThread();
+      long deadlineNs = System.nanoTime() + timeoutMs * 1_000_000L;
+      long head = mHead;
+      while (head == mTail) {
+        if (mEnded)
+          return -1;
+        long waitNs = deadlineNs - System.nanoTime();
+        if (waitNs <= 0)
+          return -1;
+        LockSupport.parkNanos(this, waitNs);
+      }
+      int slot = (int) (head % slots.length);
+      int count = Math.min(length, slotLengths[slot]);
+      System.arraycopy(slots[slot], 0, buffer, 0, count);
+      mHead = head + 1;
+      if (stream && mTail - head >= slots.length)
+        LockSupport.unpark(pumpThread);
+      return count;
+    }
+
+    // the end of the file (not a close or an error), and no report left
+    boolean isReadToTheEnd() {
+      return mEndOfFile && mHead == mTail;
+    }
+
+    long getDropped() {
+      return mDropped;
+    }
+
+    // unblocks the pump if waiting in a read (asynchronous close), but not if still opening a named pipe
+    void close() {
+      mClosed = true;
+      FileChannel channel = mChannel;
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e) {
+          DriverLog.e(TAG, "Could not close " + device, e);
+        }
+      }
+    }
+  }
+}
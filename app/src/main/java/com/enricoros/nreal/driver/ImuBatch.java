@@ -0,0 +1,71 @@
+package com.enricoros.nreal.driver;
+
+/**
+ * A batch of raw IMU samples, delivered at once to a {@link NrealManager.BatchListener}.
+ * Storage is preallocated and reused: the batch is only valid during the callback.
+ * <p>
+ * For the sample i, values are at [i * VALUES_PER_SAMPLE + OFFSET_...] in {@link #getValues()}.
+ */
+public class ImuBatch {
+
+  public static final int VALUES_PER_SAMPLE = 9;
+  public static final int OFFSET_ACCEL = 0;
+  public static final int OFFSET_ANG_VEL = 3;
+  public static final int OFFSET_MAG = 6;
+
+  private final int[] values;
+  private final long[] uptimeNs;
+  private int count;
+
+  ImuBatch(int capacity) {
+    values = new int[capacity * VALUES_PER_SAMPLE];
+    uptimeNs = new long[capacity];
+    count = 0;
+  }
+
+  boolean add(ImuDataRaw data) {
+    if (count >= uptimeNs.length)
+      return false;
+    int o = count * VALUES_PER_SAMPLE;
+    values[o] = data.accelX;
+    values[o + 1] = data.accelY;
+    values[o + 2] = data.accelZ;
+    values[o + 3] = data.angVelX;
+    values[o + 4] = data.angVelY;
+    values[o + 5] = data.angVelZ;
+    values[o + 6] = data.magX;
+    values[o + 7] = data.magY;
+    values[o + 8] = data.magZ;
+    uptimeNs[count] = data.uptimeNs;
+    count++;
+    return true;
+  }
+
+  void clear() {
+    count = 0;
+  }
+
+  boolean isFull() {
+    return count >= uptimeNs.length;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public int getCapacity() {
+    return uptimeNs.length;
+  }
+
+  public int[] getValues() {
+    return values;
+  }
+
+  public long getUptimeNs(int index) {
+    return uptimeNs[index];
+  }
+
+  public long getFirstUptimeNs() {
+    return count > 0 ? uptimeNs[0] : 0;
+  }
+}
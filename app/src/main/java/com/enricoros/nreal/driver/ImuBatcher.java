@@ -0,0 +1,98 @@
+package com.enricoros.nreal.driver;
+
+import android.os.Handler;
+
+/**
+ * Buffers samples coming from the reader thread, and posts them to the UI thread in batches,
+ * at most every 'max report latency' (measured on the device clock, or on the host clock if the
+ * stream stalls), when full, or when flushed.
+ * <p>
+ * Two preallocated batches are used: one is filled by the reader while the other is dispatched.
+ * If the UI thread is still busy with the previous batch when the current one is due, the current
+ * one is dispatched right after; once it is full, new samples are dropped (and counted) instead of
+ * allocating.
+ */
+class ImuBatcher {
+
+  // the IMU streams at ~1 kHz; batches can hold twice the samples of the max latency
+  private static final int NOMINAL_SAMPLES_PER_MS = 1;
+
+  private final Handler uiHandler;
+  private final NrealManager.BatchListener batchListener;
+  private final long maxReportLatencyMs;
+  private final long maxReportLatencyNs;
+  private final ImuBatch[] batches;
+  private final Runnable deadlineFlush = this::flush;
+
+  // guarded by 'this'
+  private int fillIndex = 0;
+  private boolean dispatchInFlight = false;
+  private boolean dispatchPending = false;
+  private long batchedSamples = 0;
+  private long dispatchedBatches = 0;
+  private long droppedSamples = 0;
+
+  ImuBatcher(Handler uiHandler, NrealManager.BatchListener batchListener, int maxReportLatencyMs) {
+    if (maxReportLatencyMs <= 0)
+      throw new IllegalArgumentException("The max report latency must be positive: " + maxReportLatencyMs);
+    this.uiHandler = uiHandler;
+    this.batchListener = batchListener;
+    this.maxReportLatencyMs = maxReportLatencyMs;
+    this.maxReportLatencyNs = maxReportLatencyMs * 1_000_000L;
+    int capacity = Math.max(1, maxReportLatencyMs * NOMINAL_SAMPLES_PER_MS * 2);
+    this.batches = new ImuBatch[]{new ImuBatch(capacity), new ImuBatch(capacity)};
+  }
+
+  // called on the reader thread
+  synchronized void add(ImuDataRaw data) {
+    ImuBatch batch = batches[fillIndex];
+    if (!batch.add(data)) {
+      droppedSamples++;
+      return;
+    }
+    batchedSamples++;
+    // in case no other sample comes in time
+    if (batch.getCount() == 1)
+      uiHandler.postDelayed(deadlineFlush, maxReportLatencyMs);
+    if (batch.isFull() || data.uptimeNs - batch.getFirstUptimeNs() >= maxReportLatencyNs)
+      dispatchLocked();
+  }
+
+  // called on any thread
+  synchronized void flush() {
+    dispatchLocked();
+  }
+
+  synchronized long getWakeupsSaved() {
+    return batchedSamples - dispatchedBatches;
+  }
+
+  synchronized long getDroppedSamples() {
+    return droppedSamples;
+  }
+
+  private void dispatchLocked() {
+    ImuBatch batch = batches[fillIndex];
+    if (batch.getCount() == 0)
+      return;
+    if (dispatchInFlight) {
+      // the UI thread still has the other batch: dispatched when it's done
+      dispatchPending = true;
+      return;
+    }
+    dispatchInFlight = true;
+    dispatchPending = false;
+    dispatchedBatches++;
+    uiHandler.removeCallbacks(deadlineFlush);
+    fillIndex = 1 - fillIndex;
+    uiHandler.post(() -> {
+      batchListener.onImuBatch(batch);
+      synchronized (ImuBatcher.this) {
+        batch.clear();
+        dispatchInFlight = false;
+        if (dispatchPending)
+          dispatchLocked();
+      }
+    });
+  }
+}
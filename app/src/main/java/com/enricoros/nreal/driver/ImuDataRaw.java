@@ -70,4 +70,8 @@ public class ImuDataRaw {
   public float[] getAcceleration() {
     return new float[]{(float) accelX, (float) accelY, (float) accelZ};
   }
+
+  public long getUptimeNs() {
+    return uptimeNs;
+  }
 }
\ No newline at end of file
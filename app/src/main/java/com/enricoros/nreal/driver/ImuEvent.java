@@ -0,0 +1,74 @@
+package com.enricoros.nreal.driver;
+
+import android.annotation.SuppressLint;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A shock, drop or clipping episode detected by the {@link ImuEventDetector}: the types seen during
+ * the episode, its timing and peak values, and the samples around the one that triggered it.
+ */
+public class ImuEvent {
+
+  // types, also used as flags of the samples (ImuSample.eventFlags)
+  public static final int IMPACT = 1;
+  public static final int FREE_FALL = 2;
+  public static final int ACCEL_SATURATION = 4;
+  public static final int GYRO_SATURATION = 8;
+
+  /** Bitmask of the types above. */
+  public final int types;
+  /** Device uptime of the start of the episode (for a free fall: of the first low-g sample). */
+  public final long startUptimeNs;
+  public final long durationNs;
+  /** Magnitudes over the episode. */
+  public final float peakAccelG;
+  public final float minAccelG;
+  public final float peakGyroDps;
+  public final int saturatedSamples;
+  /** Continues the previous event: a longer episode is reported in parts (see ImuEventDetector). */
+  public final boolean continued;
+
+  /** Samples around the trigger: uptimes, and x/y/z per sample. */
+  public final long[] uptimesNs;
+  public final float[][] accelG;
+  public final float[][] gyroDps;
+  public final int triggerIndex;
+
+  ImuEvent(int types, long startUptimeNs, long durationNs, float peakAccelG, float minAccelG, float peakGyroDps, int saturatedSamples,
+           long[] uptimesNs, float[][] accelG, float[][] gyroDps, int triggerIndex, boolean continued) {
+    this.types = types;
+    this.startUptimeNs = startUptimeNs;
+    this.durationNs = durationNs;
+    this.peakAccelG = peakAccelG;
+    this.minAccelG = minAccelG;
+    this.peakGyroDps = peakGyroDps;
+    this.saturatedSamples = saturatedSamples;
+    this.uptimesNs = uptimesNs;
+    this.accelG = accelG;
+    this.gyroDps = gyroDps;
+    this.triggerIndex = triggerIndex;
+    this.continued = continued;
+  }
+
+  public boolean is(int type) {
+    return (types & type) != 0;
+  }
+
+  @NonNull
+  @Override
+  @SuppressLint("DefaultLocale")
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    if (is(IMPACT))
+      sb.append("impact ");
+    if (is(FREE_FALL))
+      sb.append("free fall ");
+    if (is(ACCEL_SATURATION))
+      sb.append("accel saturation ");
+    if (is(GYRO_SATURATION))
+      sb.append("gyro saturation ");
+    return sb.append(String.format("%sat %.3f s, %.1f ms: accel %.1f..%.1f g, gyro %.0f dps, %d saturated samples", continued ? "(continued) " : "",
+        startUptimeNs / 1e9, durationNs / 1e6, minAccelG, peakAccelG, peakGyroDps, saturatedSamples)).toString();
+  }
+}
@@ -0,0 +1,206 @@
+package com.enricoros.nreal.driver;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Detection of shocks, drops and clipping, cheap enough for every sample on the reader thread:
+ * integer magnitudes of the raw counts against squared thresholds, and a small ring of the last
+ * raw samples. Impacts and saturation are flagged on the sample where they occur; a free fall once
+ * the low g has lasted FREE_FALL_MIN_NS (shorter dips are vibration), dated and triggered from its
+ * first sample, so that the samples before the fall are kept.
+ * <p>
+ * An episode lasts while any condition holds, and is reported when over (but not before
+ * POST_SAMPLES after its trigger), with the PRE_SAMPLES before the trigger. So that a condition held
+ * longer (e.g. a sensor stuck at full scale) is not reported late, its episode is cut every
+ * MAX_EPISODE_NS: one event per part, all but the first marked continued. Single thread.
+ */
+public class ImuEventDetector {
+
+  public interface EventListener {
+    void onImuEvent(@NonNull ImuEvent event);
+  }
+
+  public static final float IMPACT_G = 6f;
+  public static final float FREE_FALL_G = 0.3f;
+  public static final long FREE_FALL_MIN_NS = 30_000_000L;
+  public static final int SATURATION_COUNTS = 8_380_000; // 99.9% of the 24-bit full scale
+  private static final float FREE_FALL_END_G = 0.5f;
+  private static final long MAX_EPISODE_NS = 1_000_000_000L;
+  private static final int PRE_SAMPLES = 8;
+  private static final int POST_SAMPLES = 8;
+  // power of 2, > PRE_SAMPLES + 1 + max(POST_SAMPLES, the samples of FREE_FALL_MIN_NS: 60 at 2 kHz)
+  private static final int RING_SAMPLES = 128;
+
+  private static final long IMPACT_SQ = squaredCounts(IMPACT_G);
+  private static final long FREE_FALL_SQ = squaredCounts(FREE_FALL_G);
+  private static final long FREE_FALL_END_SQ = squaredCounts(FREE_FALL_END_G);
+
+  private final EventListener listener;
+
+  // last raw samples (accel x, y, z, gyro x, y, z), by sequence number
+  private final long[] ringUptimesNs = new long[RING_SAMPLES];
+  private final int[] ringRaw = new int[RING_SAMPLES * 6];
+  private long seq = 0;
+  private long firstSeqAfterGap = 0;
+  private boolean cut = false; // the last sample ended an episode at MAX_EPISODE_NS, not over yet
+
+  private long lowGStartNs = 0;
+  private long lowGStartSeq;
+  private boolean freeFall = false;
+
+  // current episode
+  private boolean inEpisode = false;
+  private int episodeTypes;
+  private boolean episodeContinued;
+  private long episodeStartNs;
+  private long episodeLastNs;
+  private long triggerSeq;
+  private long peakAccelSq;
+  private long minAccelSq;
+  private long peakGyroSq;
+  private int saturatedSamples;
+  private long[] windowUptimesNs; // null until captured
+  private float[][] windowAccelG;
+  private float[][] windowGyroDps;
+  private int windowTriggerIndex;
+
+  public ImuEventDetector(@NonNull EventListener eventListener) {
+    listener = eventListener;
+  }
+
+  /**
+   * @return the event flags of this sample (ImuEvent types), 0 almost always
+   */
+  public int process(long uptimeNs, int[] accelRaw, int[] angVelRaw) {
+    boolean afterCut = cut;
+    cut = false;
+    int ax = accelRaw[0], ay = accelRaw[1], az = accelRaw[2];
+    int gx = angVelRaw[0], gy = angVelRaw[1], gz = angVelRaw[2];
+    int slot = (int) (seq & (RING_SAMPLES - 1));
+    ringUptimesNs[slot] = uptimeNs;
+    int[] raw = ringRaw;
+    int r = slot * 6;
+    raw[r] = ax;
+    raw[r + 1] = ay;
+    raw[r + 2] = az;
+    raw[r + 3] = gx;
+    raw[r + 4] = gy;
+    raw[r + 5] = gz;
+
+    long accelSq = (long) ax * ax + (long) ay * ay + (long) az * az;
+    int flags = 0;
+    if (accelSq > IMPACT_SQ)
+      flags = ImuEvent.IMPACT;
+    if (saturated(ax) || saturated(ay) || saturated(az))
+      flags |= ImuEvent.ACCEL_SATURATION;
+    if (saturated(gx) || saturated(gy) || saturated(gz))
+      flags |= ImuEvent.GYRO_SATURATION;
+    if (accelSq < FREE_FALL_SQ) {
+      if (lowGStartNs == 0) {
+        lowGStartNs = uptimeNs;
+        lowGStartSeq = seq;
+      }
+      if (uptimeNs - lowGStartNs >= FREE_FALL_MIN_NS)
+        freeFall = true;
+    } else if (!freeFall || accelSq > FREE_FALL_END_SQ) {
+      lowGStartNs = 0;
+      freeFall = false;
+    }
+    if (freeFall)
+      flags |= ImuEvent.FREE_FALL;
+
+    if (flags != 0) {
+      if (!inEpisode)
+        startEpisode(flags, uptimeNs, afterCut);
+      episodeTypes |= flags;
+      episodeLastNs = uptimeNs;
+      long gyroSq = (long) gx * gx + (long) gy * gy + (long) gz * gz;
+      peakAccelSq = Math.max(peakAccelSq, accelSq);
+      minAccelSq = Math.min(minAccelSq, accelSq);
+      peakGyroSq = Math.max(peakGyroSq, gyroSq);
+      if ((flags & (ImuEvent.ACCEL_SATURATION | ImuEvent.GYRO_SATURATION)) != 0)
+        saturatedSamples++;
+    }
+    if (inEpisode) {
+      if (windowUptimesNs == null && seq - triggerSeq >= POST_SAMPLES)
+        captureWindow(seq);
+      if (windowUptimesNs != null && (flags == 0 || uptimeNs - episodeStartNs >= MAX_EPISODE_NS)) {
+        cut = flags != 0;
+        emitEpisode();
+      }
+    }
+    seq++;
+    return flags;
+  }
+
+  /**
+   * Discontinuity in the stream: reports the episode in progress with the samples so far.
+   */
+  public void markGap() {
+    if (inEpisode) {
+      if (windowUptimesNs == null)
+        captureWindow(seq - 1);
+      emitEpisode();
+    }
+    firstSeqAfterGap = seq;
+    cut = false;
+    lowGStartNs = 0;
+    freeFall = false;
+  }
+
+
+  private void startEpisode(int flags, long uptimeNs, boolean continued) {
+    inEpisode = true;
+    episodeTypes = 0;
+    episodeContinued = continued;
+    // a free fall starts at its first low-g sample, with the samples before it (the sample that
+    // confirms it is FREE_FALL_MIN_NS later); a continued one where the previous part ended
+    boolean fallOnset = (flags & ImuEvent.FREE_FALL) != 0 && !continued;
+    episodeStartNs = fallOnset ? lowGStartNs : uptimeNs;
+    triggerSeq = fallOnset ? lowGStartSeq : seq;
+    peakAccelSq = 0;
+    minAccelSq = Long.MAX_VALUE;
+    peakGyroSq = 0;
+    saturatedSamples = 0;
+    windowUptimesNs = null;
+  }
+
+  // copies the samples around the trigger out of the ring, in units (allocates, once per episode)
+  private void captureWindow(long lastSeq) {
+    long firstSeq = Math.max(Math.max(triggerSeq - PRE_SAMPLES, firstSeqAfterGap), lastSeq - RING_SAMPLES + 1);
+    int count = (int) (lastSeq - firstSeq + 1);
+    windowUptimesNs = new long[count];
+    windowAccelG = new float[count][3];
+    windowGyroDps = new float[count][3];
+    for (int i = 0; i < count; i++) {
+      int slot = (int) ((firstSeq + i) & (RING_SAMPLES - 1));
+      windowUptimesNs[i] = ringUptimesNs[slot];
+      for (int axis = 0; axis < 3; axis++) {
+        windowAccelG[i][axis] = ringRaw[slot * 6 + axis] * ImuStages.ACCEL_SCALE_G;
+        windowGyroDps[i][axis] = ringRaw[slot * 6 + 3 + axis] * ImuStages.GYRO_SCALE_DPS;
+      }
+    }
+    windowTriggerIndex = (int) (triggerSeq - firstSeq);
+  }
+
+  private void emitEpisode() {
+    inEpisode = false;
+    ImuEvent event = new ImuEvent(episodeTypes, episodeStartNs, episodeLastNs - episodeStartNs,
+        (float) Math.sqrt(peakAccelSq) * ImuStages.ACCEL_SCALE_G, (float) Math.sqrt(minAccelSq) * ImuStages.ACCEL_SCALE_G,
+        (float) Math.sqrt(peakGyroSq) * ImuStages.GYRO_SCALE_DPS, saturatedSamples,
+        windowUptimesNs, windowAccelG, windowGyroDps, windowTriggerIndex, episodeContinued);
+    windowUptimesNs = null;
+    windowAccelG = null;
+    windowGyroDps = null;
+    listener.onImuEvent(event);
+  }
+
+  private static boolean saturated(int counts) {
+    return counts >= SATURATION_COUNTS || counts <= -SATURATION_COUNTS;
+  }
+
+  private static long squaredCounts(float g) {
+    long counts = (long) (g / ImuStages.ACCEL_SCALE_G);
+    return counts * counts;
+  }
+}
@@ -0,0 +1,248 @@
+package com.enricoros.nreal.driver;
+
+import android.annotation.SuppressLint;
+
+import androidx.annotation.NonNull;
+
+import com.enricoros.nreal.driver.data.MagnetometerPreprocessor;
+import com.enricoros.nreal.driver.data.NoiseCharacterizer;
+import com.enricoros.nreal.driver.data.OneEuroFilter;
+import com.enricoros.nreal.driver.data.ProcessingSnapshot;
+import com.enricoros.nreal.driver.pipeline.ImuSample;
+import com.enricoros.nreal.driver.pipeline.ProcessingStage;
+import com.enricoros.nreal.driver.report.ImuReport;
+
+import java.util.function.Consumer;
+
+/**
+ * The standard stages of the IMU processing pipeline of NrealDeviceThread, in order: decode,
+ * detect, calibrate, filter, analytics, (custom stages,) publish. The stages that own adaptive state also
+ * capture it into the sample's snapshot, when there is one, so they can run on any thread.
+ * <p>
+ * The scales are public, to convert the raw values of ImuDataRaw and ImuBatch.
+ */
+public final class ImuStages {
+
+  // constants from the datasheets
+  public static final float TICK_SCALE_S = 1f / 1E9f;
+  public static final float GYRO_SCALE_DPS = 2000f / 8388608f; // based on 24bit signed int w/ FSR = +/-2000 dps, datasheet option
+  public static final float ACCEL_SCALE_G = 16f / 8388608f;    // based on 24bit signed int w/ FSR = +/-16 g, datasheet option
+
+  private ImuStages() {
+  }
+
+  /**
+   * Packet decode (layout in NrealReports.IMU, decoders generated from it) and normalization.
+   * The first sample after a gap only primes the timing (timingOnly): Detect still sees it, then
+   * skips it.
+   */
+  static final class Decode implements ProcessingStage {
+    private long lastUptimeNs = 0;
+    private boolean primed = false;
+
+    @NonNull
+    @Override
+    public String getName() {
+      return NrealManager.STAGE_DECODE;
+    }
+
+    @Override
+    public boolean process(@NonNull ImuSample sample) {
+      byte[] report = sample.report;
+      long uptimeNs = ImuReport.uptimeNs(report);
+      sample.uptimeNs = uptimeNs;
+      sample.angVelRaw[0] = ImuReport.angVelX(report);
+      sample.angVelRaw[1] = ImuReport.angVelY(report);
+      sample.angVelRaw[2] = ImuReport.angVelZ(report);
+      sample.accelRaw[0] = ImuReport.accelX(report);
+      sample.accelRaw[1] = ImuReport.accelY(report);
+      sample.accelRaw[2] = ImuReport.accelZ(report);
+      sample.magRaw[0] = ImuReport.magX(report);
+      sample.magRaw[1] = ImuReport.magY(report);
+      sample.magRaw[2] = ImuReport.magZ(report);
+
+      // Integrate information, if we have a previous time
+      boolean timingOnly = sample.afterGap || lastUptimeNs < 1;
+      sample.timingOnly = timingOnly;
+      sample.dT = timingOnly ? 0 : (uptimeNs - lastUptimeNs) * TICK_SCALE_S;
+      lastUptimeNs = uptimeNs;
+      if (!timingOnly) {
+        // after Detect, afterGap marks the first sample with a time delta
+        sample.afterGap = primed;
+        primed = false;
+      } else
+        primed = true;
+
+      // Normalize the data for the 3DoF
+      for (int axis = 0; axis < 3; axis++) {
+        sample.gyroDps[axis] = (float) (sample.angVelRaw[axis]) * GYRO_SCALE_DPS;
+        sample.accelG[axis] = (float) (sample.accelRaw[axis]) * ACCEL_SCALE_G;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Impact, free fall and saturation detection, on the raw values: flags the sample (eventFlags)
+   * for the following stages, and reports the events with the surrounding samples. Runs on every
+   * sample, including the one priming the timing after a gap, which it skips afterwards.
+   */
+  static final class Detect implements ProcessingStage {
+    private final ImuEventDetector detector;
+
+    Detect(ImuEventDetector eventDetector) {
+      detector = eventDetector;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+      return NrealManager.STAGE_DETECT;
+    }
+
+    @Override
+    public boolean process(@NonNull ImuSample sample) {
+      if (sample.timingOnly)
+        detector.markGap();
+      sample.eventFlags = detector.process(sample.uptimeNs, sample.accelRaw, sample.angVelRaw);
+      if (sample.timingOnly) {
+        sample.skipped = true;
+        return false;
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Magnetometer calibration (hard iron, scale) and low-pass.
+   */
+  static final class Calibrate implements ProcessingStage {
+    private final MagnetometerPreprocessor magnetometerPreprocessor;
+
+    Calibrate(MagnetometerPreprocessor preprocessor) {
+      magnetometerPreprocessor = preprocessor;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+      return NrealManager.STAGE_CALIBRATE;
+    }
+
+    @Override
+    public boolean process(@NonNull ImuSample sample) {
+      float[] mag = magnetometerPreprocessor.process(sample.magRaw, sample.dT);
+      System.arraycopy(mag, 0, sample.magNormalized, 0, 3);
+      if (sample.snapshot != null)
+        sample.snapshot.captureMagnetometer(magnetometerPreprocessor);
+      return true;
+    }
+  }
+
+  /**
+   * Jitter smoothing of the accelerometer: ~90% less jitter when still, ~4ms lag on a 1.5Hz nod (see
+   * SmoothingEvaluatorTest). The magnetometer is only low-passed by the calibration: smoothing it
+   * again added lag for a jitter already far below a degree.
+   */
+  static final class Filter implements ProcessingStage {
+    private final OneEuroFilter accelSmoother;
+
+    Filter(OneEuroFilter accelerationSmoother) {
+      accelSmoother = accelerationSmoother;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+      return NrealManager.STAGE_FILTER;
+    }
+
+    @Override
+    public boolean process(@NonNull ImuSample sample) {
+      System.arraycopy(accelSmoother.process(sample.accelG, sample.dT), 0, sample.accelSmoothedG, 0, 3);
+      return true;
+    }
+  }
+
+  /**
+   * Noise characterization, on the unfiltered values, when enabled.
+   */
+  static final class Analytics implements ProcessingStage {
+    private volatile NoiseCharacterizer mNoiseCharacterizer;
+
+    void setNoiseCharacterizer(NoiseCharacterizer noiseCharacterizer) {
+      if (noiseCharacterizer != null)
+        noiseCharacterizer.markGap();
+      mNoiseCharacterizer = noiseCharacterizer;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+      return NrealManager.STAGE_ANALYTICS;
+    }
+
+    @Override
+    public boolean process(@NonNull ImuSample sample) {
+      NoiseCharacterizer noiseCharacterizer = mNoiseCharacterizer;
+      if (noiseCharacterizer != null) {
+        // restart the statistics after a gap
+        if (sample.afterGap)
+          noiseCharacterizer.markGap();
+        float[] gyro = sample.gyroDps;
+        float[] accel = sample.accelG;
+        noiseCharacterizer.add(gyro[0], gyro[1], gyro[2], accel[0], accel[1], accel[2], sample.dT);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Dispatch to the listener, and hand-off of the completed snapshots (to be written).
+   */
+  static final class Publish implements ProcessingStage {
+    private final ImuDataRaw imuDataRaw = new ImuDataRaw();
+    private final NrealDeviceThread.ThreadCallbacks threadCallbacks;
+    private final Consumer<ProcessingSnapshot> snapshotConsumer;
+    private volatile boolean mStatusText = true;
+
+    Publish(NrealDeviceThread.ThreadCallbacks callbacks, Consumer<ProcessingSnapshot> snapshotWriter) {
+      threadCallbacks = callbacks;
+      snapshotConsumer = snapshotWriter;
+    }
+
+    // the text is only shown to per-sample listeners (batches carry the raw values), and formatting it costs more than the rest of the processing
+    void setStatusTextEnabled(boolean enabled) {
+      mStatusText = enabled;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+      return NrealManager.STAGE_PUBLISH;
+    }
+
+    @Override
+    @SuppressLint("DefaultLocale")
+    public boolean process(@NonNull ImuSample sample) {
+      if (sample.snapshot != null)
+        snapshotConsumer.accept(sample.snapshot);
+
+      int[] accel = sample.accelRaw;
+      int[] angVel = sample.angVelRaw;
+      int[] mag = sample.magRaw;
+      imuDataRaw.update(accel[0], accel[1], accel[2], angVel[0], angVel[1], angVel[2], mag[0], mag[1], mag[2], sample.uptimeNs);
+
+      // convert dRoll to string with 2 decimal places
+      if (mStatusText) {
+        float[] gyro = sample.gyroDps;
+        float[] a = sample.accelSmoothedG;
+        float[] m = sample.magNormalized;
+        imuDataRaw.update(String.format("\n\nGyro (dps):  %+,.1f  %+,.1f  %+,.1f\n\nAcc    (G):  %+,.1f  %+,.1f  %+,.1f\n\nMag (norm):  %.3f  %.3f  %.3f\n\ndT (ms):  %3.0f",
+            gyro[0], gyro[1], gyro[2], a[0], a[1], a[2], m[0], m[1], m[2], sample.dT * 1000));
+      }
+      threadCallbacks.onNewData(imuDataRaw);
+      return true;
+    }
+  }
+}
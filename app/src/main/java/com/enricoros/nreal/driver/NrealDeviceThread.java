@@ -1,15 +1,30 @@
 package com.enricoros.nreal.driver;
 
-import android.annotation.SuppressLint;
-import android.content.SharedPreferences;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-import android.util.Log;
-import android.util.Pair;
-
 import com.enricoros.nreal.driver.data.MagnetometerPreprocessor;
-
+import com.enricoros.nreal.driver.data.NoiseCharacterizer;
+import com.enricoros.nreal.driver.data.OneEuroFilter;
+import com.enricoros.nreal.driver.data.ProcessingSnapshot;
+import com.enricoros.nreal.driver.pipeline.ImuSample;
+import com.enricoros.nreal.driver.pipeline.ProcessingPipeline;
+import com.enricoros.nreal.driver.pipeline.ProcessingStage;
+import com.enricoros.nreal.driver.report.ImuReport;
+import com.enricoros.nreal.driver.report.OtherReport;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Implements communication with the device and decoding of the data.
@@ -25,24 +40,46 @@ class NrealDeviceThread extends Thread {
   private static final boolean DEBUG_10HZ = false;
   private static final boolean DEBUG_OTHER_COMMANDS = false;
 
-  // constants from the datasheets
-  private static final float TICK_SCALE_S = 1f / 1E9f;
-  private static final float GYRO_SCALE_DPS = 2000f / 8388608f; // based on 24bit signed int w/ FSR = +/-2000 dps, datasheet option
-  private static final float ACCEL_SCALE_G = 16f / 8388608f;    // based on 24bit signed int w/ FSR = +/-16 g, datasheet option
+  // flight recorder: last ~5 seconds of reports, dumped on errors
+  private static final int FLIGHT_RECORDER_REPORTS = 5000;
+  private static final int INVALID_REPORTS_BEFORE_DUMP = 10;
+  private static final int MAX_FLIGHT_RECORDER_DUMPS = 5;
+
+  // processing state snapshots, for a warm start on the next connection
+  private static final long SNAPSHOT_PERIOD_NS = 10_000_000_000L;
+  private static final Object STATE_FILE_LOCK = new Object();
+  private static final long FILE_WRITES_TIMEOUT_MS = 1000;
+  // the final snapshot of the last reader, queued when it ended: the next one restores after it
+  private static volatile Future<?> sFinalStateWrite;
 
-  private final UsbDeviceConnection connection;
-  private final UsbEndpoint imuIn;
-  private final UsbEndpoint imuOut;
-  private final UsbEndpoint otherIn;
+  // stall recovery: reads attempted at each escalation level (see StallWatchdog)
+  private static final int RECOVERY_READS_PER_LEVEL = 3;
+
+  private final NrealTransport transport;
   private final ThreadCallbacks threadCallbacks;
   private final byte[] imuData = new byte[64];
   private final byte[] otherData = new byte[64];
-  private final ImuDataRaw imuDataRaw = new ImuDataRaw();
   private final MagnetometerPreprocessor magnetometerPreprocessor = new MagnetometerPreprocessor(100.f, 200);
-
-  private boolean mQuit = false;
+  private final OneEuroFilter accelSmoother = new OneEuroFilter(3, 1f, 5f, 1f);
+  private final ImuStages.Analytics analyticsStage = new ImuStages.Analytics();
+  private final ImuStages.Publish publishStage;
+  private final ImuSample pipelineInput = new ImuSample();
+  private final FlightRecorder flightRecorder = new FlightRecorder(FLIGHT_RECORDER_REPORTS);
+  private final File flightRecorderDir;
+  private final File stateFile;
+  private final String legacyCalibration;
+  private final StallWatchdog stallWatchdog;
+  // file writes (dumps, snapshots) off the reader and processing threads, in order
+  private final ExecutorService fileWriter = Executors.newSingleThreadExecutor(r -> new Thread(r, "NrealFileWriter"));
+
+  private volatile boolean mQuit = false;
+  private volatile boolean mFlightRecorderDumpRequested = false;
+  private volatile String mProcessingError;
+  private ProcessingPipeline pipeline;
+  private int consecutiveInvalidReports = 0;
 
   private long lastUptimeNs;
+  private long lastSnapshotUptimeNs;
 
   public static final int BUTTON_POWER = 1;
   public static final int BUTTON_BRIGHTNESS_UP = 2;
@@ -54,15 +91,31 @@ class NrealDeviceThread extends Thread {
     void onNewData(ImuDataRaw data);
 
     void onButtonPressedTemp(int button, int value);
+
+    void onMessage(String message);
+
+    void onImuEvent(ImuEvent event);
+
+    /**
+     * The transport has no more reports (see NrealTransport.isEndOfStream): called once the last
+     * sample has been processed, and the reader is about to end.
+     */
+    void onEndOfStream();
   }
 
 
-  public NrealDeviceThread(UsbDeviceConnection deviceConnection, Pair<UsbEndpoint, UsbEndpoint> imuEndpoints, Pair<UsbEndpoint, UsbEndpoint> otherEndpoints, ThreadCallbacks callbacks) {
-    connection = deviceConnection;
-    imuIn = imuEndpoints.first;
-    imuOut = imuEndpoints.second;
-    otherIn = otherEndpoints.first;
+  /**
+   * @param legacyMagnetometerCalibration the calibration saved by older versions (string preference), used when there is no snapshot yet
+   */
+  public NrealDeviceThread(NrealTransport deviceTransport, ThreadCallbacks callbacks, File flightRecorderDirectory, File processingStateFile,
+                           String legacyMagnetometerCalibration, StallWatchdog watchdog) {
+    transport = deviceTransport;
     threadCallbacks = callbacks;
+    flightRecorderDir = flightRecorderDirectory;
+    stateFile = processingStateFile;
+    legacyCalibration = legacyMagnetometerCalibration;
+    stallWatchdog = watchdog;
+    publishStage = new ImuStages.Publish(callbacks, this::saveStateAsync);
   }
 
   public void quit() {
@@ -74,30 +127,162 @@ class NrealDeviceThread extends Thread {
     }
   }
 
+  public void requestFlightRecorderDump() {
+    mFlightRecorderDumpRequested = true;
+  }
+
+  public void setNoiseCharacterizer(NoiseCharacterizer noiseCharacterizer) {
+    analyticsStage.setNoiseCharacterizer(noiseCharacterizer);
+  }
+
+  /**
+   * The human-readable status of each sample (ImuDataRaw._tmpOther): not needed when batching.
+   */
+  public void setStatusTextEnabled(boolean enabled) {
+    publishStage.setStatusTextEnabled(enabled);
+  }
+
+
+  /**
+   * The names of the processing stages in pipeline order: the standard ones, with the custom ones
+   * before publishing.
+   */
+  static List<String> getStageNames(List<ProcessingStage> customStages) {
+    List<String> names = new ArrayList<>();
+    names.add(NrealManager.STAGE_DECODE);
+    names.add(NrealManager.STAGE_DETECT);
+    names.add(NrealManager.STAGE_CALIBRATE);
+    names.add(NrealManager.STAGE_FILTER);
+    names.add(NrealManager.STAGE_ANALYTICS);
+    for (ProcessingStage stage : customStages)
+      names.add(stage.getName());
+    names.add(NrealManager.STAGE_PUBLISH);
+    return names;
+  }
+
+  /**
+   * @param stageThreads explicit placements by stage name: the other stages run on the thread of the stage before them (the reader, for the first)
+   * @return the thread of each stage
+   */
+  static List<String> resolveStageThreads(List<String> stageNames, Map<String, String> stageThreads) {
+    List<String> threads = new ArrayList<>();
+    String threadName = ProcessingPipeline.READER_THREAD;
+    for (String stageName : stageNames) {
+      threadName = stageThreads.getOrDefault(stageName, threadName);
+      threads.add(threadName);
+    }
+    return threads;
+  }
 
-  public void saveState(SharedPreferences preferences) {
-    int[] calibration = magnetometerPreprocessor.saveCalibration();
-    if (calibration != null)
-      preferences.edit().putString("magnetometer_calibration", Arrays.toString(calibration)).apply();
+  /**
+   * Composes the processing pipeline, before starting (see getStageNames() for the order).
+   *
+   * @param stageThreads explicit placements by stage name (see resolveStageThreads())
+   */
+  public void configurePipeline(Map<String, String> stageThreads, List<ProcessingStage> customStages) {
+    List<ProcessingStage> stages = new ArrayList<>();
+    stages.add(new ImuStages.Decode());
+    stages.add(new ImuStages.Detect(new ImuEventDetector(threadCallbacks::onImuEvent)));
+    stages.add(new ImuStages.Calibrate(magnetometerPreprocessor));
+    stages.add(new ImuStages.Filter(accelSmoother));
+    stages.add(analyticsStage);
+    stages.addAll(customStages);
+    stages.add(publishStage);
+    List<String> threads = resolveStageThreads(getStageNames(customStages), stageThreads);
+    pipeline = new ProcessingPipeline().setErrorListener((stageName, threadName, error) -> {
+      // ends the reading, which reports it
+      if (mProcessingError == null)
+        mProcessingError = "Processing error in " + stageName + ": " + error;
+    });
+    for (int i = 0; i < stages.size(); i++)
+      pipeline.addStage(stages.get(i), threads.get(i));
   }
 
-  public boolean restoreState(SharedPreferences preferences) {
-    String calibration = preferences.getString("magnetometer_calibration", null);
-    if (calibration != null) {
-      String[] split = calibration.substring(1, calibration.length() - 1).split(", ");
+  public String getPipelineReport() {
+    return pipeline.report();
+  }
+
+
+  /**
+   * Restores the last processing state snapshot (or the calibration saved by older versions), on
+   * this thread before the first read.
+   *
+   * @return what was restored, or null
+   */
+  private String restoreState() {
+    ProcessingSnapshot snapshot = readSnapshot();
+    if (snapshot == null) {
+      if (legacyCalibration == null)
+        return null;
+      String[] split = legacyCalibration.substring(1, legacyCalibration.length() - 1).split(", ");
       int[] ints = new int[split.length];
       for (int i = 0; i < split.length; i++)
         ints[i] = Integer.parseInt(split[i]);
-      magnetometerPreprocessor.restoreCalibration(ints);
-      return true;
+      snapshot = ProcessingSnapshot.ofCalibration(ints);
+    }
+    return snapshot.restore(magnetometerPreprocessor);
+  }
+
+  private ProcessingSnapshot readSnapshot() {
+    if (stateFile == null)
+      return null;
+    awaitFinalStateWrite();
+    synchronized (STATE_FILE_LOCK) {
+      if (!stateFile.exists())
+        return null;
+      try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+        byte[] data = new byte[(int) stateFile.length()];
+        in.readFully(data);
+        return ProcessingSnapshot.parse(data);
+      } catch (IOException e) {
+        DriverLog.e(TAG, "Could not read the processing state", e);
+        return null;
+      }
+    }
+  }
+
+  // periodic, captured by the stages: written to file off the processing threads
+  private void saveStateAsync(ProcessingSnapshot snapshot) {
+    if (stateFile == null)
+      return;
+    byte[] data = snapshot.serialize();
+    fileWriter.execute(() -> writeState(data));
+  }
+
+  // atomically, via a temporary file
+  private void writeState(byte[] data) {
+    synchronized (STATE_FILE_LOCK) {
+      File tempFile = new File(stateFile.getPath() + ".tmp");
+      try (FileOutputStream out = new FileOutputStream(tempFile)) {
+        out.write(data);
+      } catch (IOException e) {
+        DriverLog.e(TAG, "Could not write the processing state", e);
+        return;
+      }
+      if (!tempFile.renameTo(stateFile))
+        DriverLog.e(TAG, "Could not replace the processing state file");
     }
-    return false;
   }
 
 
   @Override
   public void run() {
+    try {
+      readAndProcess();
+    } finally {
+      // the pending writes still complete
+      fileWriter.shutdown();
+    }
+    DriverLog.e(TAG, "Reader thread finished");
+  }
+
+  private void readAndProcess() {
+    String restored = restoreState();
+    if (restored != null)
+      threadCallbacks.onMessage("Restored " + restored);
+
     if (!t_startImu()) {
+      dumpFlightRecorder("Could not start reading the IMU");
       threadCallbacks.onConnectionError("Could not start reading the IMU");
       return;
     }
@@ -107,13 +292,23 @@ class NrealDeviceThread extends Thread {
     }
 
     lastUptimeNs = 0;
-
-    // Infinite read until we request to quit or the device is disconnected (mDeviceConnection can be nullified, not the local copy)
-    while (!mQuit /*&& mDeviceConnection != null*/) {
-
-      // read the IMU data - must be coming within 200ms (as it's periodic)
-      int res = connection.bulkTransfer(imuIn, imuData, 64, 200);
-      if (res < 0) {
+    stallWatchdog.onStreamStart();
+    pipeline.start();
+
+    boolean endOfStream = false;
+    // Infinite read until we request to quit, the device is disconnected or the stream ends (the transport is closed by the manager only after we quit)
+    while (!mQuit && mProcessingError == null) {
+
+      // read the IMU data - must be coming within a few periods (as it's periodic), or it's a stall
+      int res = readImu(stallWatchdog.getReadTimeoutMs());
+      if (res < 0 && (transport.isEndOfStream() || !recoverFromStall())) {
+        if (mQuit)
+          break;
+        if (transport.isEndOfStream()) {
+          endOfStream = true;
+          break;
+        }
+        dumpFlightRecorder("Could not read the IMU");
         threadCallbacks.onConnectionError("Could not read the IMU");
         break;
       }
@@ -122,75 +317,129 @@ class NrealDeviceThread extends Thread {
       processIMUData();
 
       // read the other data - if it's there (timeout of 1 second, non blocking)
-      res = connection.bulkTransfer(otherIn, otherData, 64, DEBUG_10HZ ? 100 : 1);
-      if (res > 0)
+      long readStartNs = System.nanoTime();
+      res = transport.readOther(otherData, 64, DEBUG_10HZ ? 100 : 1);
+      if (res > 0) {
+        long readEndNs = System.nanoTime();
+        flightRecorder.record(FlightRecorder.KIND_OTHER, otherData, res, readEndNs, readEndNs - readStartNs);
         processOtherData();
+      }
+
+      if (mFlightRecorderDumpRequested) {
+        mFlightRecorderDumpRequested = false;
+        dumpFlightRecorder("On demand");
+      }
     }
-    Log.e(TAG, "Reader thread finished");
-  }
 
+    // drain the workers, then the final snapshot (no stage is running anymore), if anything was processed:
+    // queued after the pending periodic ones, so that neither this thread nor quit() waits for the disk
+    boolean stopped = pipeline.stop();
+    String processingError = mProcessingError;
+    if (processingError != null) {
+      // the state of the failed stage may be inconsistent: not saved
+      dumpFlightRecorder(processingError);
+      threadCallbacks.onConnectionError(processingError);
+    } else if (!stopped)
+      DriverLog.e(TAG, "Processing still running, no final snapshot");
+    else if (lastUptimeNs > 0 && stateFile != null) {
+      byte[] finalState = ProcessingSnapshot.capture(lastUptimeNs, magnetometerPreprocessor).serialize();
+      sFinalStateWrite = fileWriter.submit(() -> writeState(finalState));
+    }
+    if (endOfStream && processingError == null)
+      threadCallbacks.onEndOfStream();
+  }
 
-  @SuppressLint("DefaultLocale")
-  private void processIMUData() {
-    // validity checks
-    if (imuData[0] != 1 || imuData[1] != 2 || imuData[12] != (byte) 0xA0 || imuData[13] != 0x0F || imuData[27] != 0x20 || imuData[42] != 0x00) {
-      printHex(imuData, 0, 64, "Unexpected IMU data (1): ");
+  /**
+   * Waits (bounded) for the final processing state of the last reader to be on file: before
+   * restoring it, and before a host exits.
+   */
+  static void awaitFinalStateWrite() {
+    Future<?> write = sFinalStateWrite;
+    if (write == null)
       return;
+    try {
+      write.get(FILE_WRITES_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      DriverLog.e(TAG, "The processing state is still being written");
+    } catch (ExecutionException e) {
+      DriverLog.e(TAG, "Could not write the processing state", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+  }
 
-    // Packet decode
-    // [0  ...  1] = 01 02
-    // int counter1 = (imuData[2] & 0xFF) | ((imuData[3] & 0xFF) << 8); // seems like some sort of delta / resource usage, averaging ~500
-    long uptimeNs = ((long) imuData[4] & 0xFF) | (((long) imuData[5] & 0xFF) << 8) | (((long) imuData[6] & 0xFF) << 16) | (((long) imuData[7] & 0xFF) << 24) |
-        (((long) imuData[8] & 0xFF) << 32) | (((long) imuData[9] & 0xFF) << 40) | (((long) imuData[10] & 0xFF) << 48) | (((long) imuData[11] & 0xFF) << 56);
-    // [12 ... 17] = A0 0F 00 00 00 01
-    int angVelX = (imuData[18] & 0xFF) | ((imuData[19] & 0xFF) << 8) | ((imuData[20] & 0xFF) << 16) | ((imuData[20] & 0x80) != 0 ? (0xFF << 24) : 0);
-    int angVelY = (imuData[21] & 0xFF) | ((imuData[22] & 0xFF) << 8) | ((imuData[23] & 0xFF) << 16) | ((imuData[23] & 0x80) != 0 ? (0xFF << 24) : 0);
-    int angVelZ = (imuData[24] & 0xFF) | ((imuData[25] & 0xFF) << 8) | ((imuData[26] & 0xFF) << 16) | ((imuData[26] & 0x80) != 0 ? (0xFF << 24) : 0);
-    // [27 ... 32] = 20 00 00 00 00 01
-    int accelX = (imuData[33] & 0xFF) | ((imuData[34] & 0xFF) << 8) | ((imuData[35] & 0xFF) << 16) | ((imuData[35] & 0x80) != 0 ? (0xFF << 24) : 0);
-    int accelY = (imuData[36] & 0xFF) | ((imuData[37] & 0xFF) << 8) | ((imuData[38] & 0xFF) << 16) | ((imuData[38] & 0x80) != 0 ? (0xFF << 24) : 0);
-    int accelZ = (imuData[39] & 0xFF) | ((imuData[40] & 0xFF) << 8) | ((imuData[41] & 0xFF) << 16) | ((imuData[41] & 0x80) != 0 ? (0xFF << 24) : 0);
-    // [42 ... 47] = 00 80 00 04 00 00
-    int magX = (imuData[48] & 0xFF) | ((imuData[49] & 0xFF) << 8);
-    int magY = (imuData[50] & 0xFF) | ((imuData[51] & 0xFF) << 8);
-    int magZ = (imuData[52] & 0xFF) | ((imuData[53] & 0xFF) << 8);
-    //int counter2 = (imuData[54] & 0xFF) | ((imuData[55] & 0xFF) << 8) | ((imuData[56] & 0xFF) << 16) | ((imuData[57] & 0xFF) << 24);
-    // [58 ... 63] = 00 00 00 00 (00 | 01) 00
-    if (imuData[58] != 0 || imuData[59] != 0 || imuData[60] != 0 || imuData[61] != 0 || (imuData[62] != 0 && imuData[62] != 1) || imuData[63] != 0)
-      printHex(imuData, 58, 6, "Unexpected IMU data (2): ");
 
-    // call the callback
-    imuDataRaw.update(accelX, accelY, accelZ, angVelX, angVelY, angVelZ, magX, magY, magZ, uptimeNs);
+  private int readImu(int timeoutMs) {
+    long readStartNs = System.nanoTime();
+    int res = transport.readImu(imuData, 64, timeoutMs);
+    long readEndNs = System.nanoTime();
+    flightRecorder.record(FlightRecorder.KIND_IMU, imuData, res, readEndNs, readEndNs - readStartNs);
+    return res;
+  }
 
-    // DATA PROCESSING
+  /**
+   * Escalating recovery of a stalled IMU stream, keeping the processing state.
+   *
+   * @return true when a valid report was read (in imuData)
+   */
+  private boolean recoverFromStall() {
+    long stallStartNs = System.nanoTime();
+    stallWatchdog.onStall();
+    for (int level = StallWatchdog.RETRY_READ; level < StallWatchdog.LEVELS && !mQuit; level++) {
+      if (level == StallWatchdog.RESTART_IMU && !t_startImu())
+        continue;
+      if (level == StallWatchdog.RECLAIM_INTERFACES && (!transport.reclaim() || !t_startImu()))
+        continue;
+      for (int attempt = 0; attempt < RECOVERY_READS_PER_LEVEL && !mQuit; attempt++) {
+        if (readImu(stallWatchdog.getRecoveryReadTimeoutMs(level)) > 0 && ImuReport.isValid(imuData)) {
+          long recoveryNs = System.nanoTime() - stallStartNs;
+          stallWatchdog.onRecovered(level, recoveryNs);
+          DriverLog.e(TAG, "IMU stall: recovered at level " + level + " in " + recoveryNs / 1000 + " us");
+          // whether reports were lost (a gap) is told by their uptime (see processIMUData)
+          return true;
+        }
+      }
+    }
+    if (!mQuit && !transport.isEndOfStream())
+      stallWatchdog.onRecoveryFailed();
+    return false;
+  }
 
-    // Integrate information, if we have a previous time
-    if (lastUptimeNs < 1) {
-      lastUptimeNs = uptimeNs;
+  private void processIMUData() {
+    // validity checks
+    if (!ImuReport.isValid(imuData)) {
+      printHex(imuData, 0, 64, "Unexpected IMU data (1): ");
+      if (++consecutiveInvalidReports == INVALID_REPORTS_BEFORE_DUMP)
+        dumpFlightRecorder("Unexpected IMU data, " + INVALID_REPORTS_BEFORE_DUMP + " times in a row");
       return;
     }
-    float dT = (uptimeNs - lastUptimeNs) * TICK_SCALE_S;
-    lastUptimeNs = uptimeNs;
+    consecutiveInvalidReports = 0;
+    if (!ImuReport.isAsExpected(imuData))
+      printHex(imuData, 58, 6, "Unexpected IMU data (2): ");
 
-    // Normalize the data for the 3DoF
-    float dRoll = (float) (angVelX) * GYRO_SCALE_DPS;
-    float dPitch = (float) (angVelY) * GYRO_SCALE_DPS;
-    float dYaw = (float) (angVelZ) * GYRO_SCALE_DPS;
-    float aX = (float) (accelX) * ACCEL_SCALE_G;
-    float aY = (float) (accelY) * ACCEL_SCALE_G;
-    float aZ = (float) (accelZ) * ACCEL_SCALE_G;
-    float[] mag = magnetometerPreprocessor.process(new int[]{magX, magY, magZ}, dT);
+    long uptimeNs = ImuReport.uptimeNs(imuData);
+    // after a gap, restart the integration (and the noise statistics)
+    boolean afterGap = stallWatchdog.onSample(uptimeNs);
+    if (lastUptimeNs < 1)
+      lastSnapshotUptimeNs = uptimeNs;
+    lastUptimeNs = uptimeNs;
 
-    // convert dRoll to string with 2 decimal places
-    imuDataRaw.update(String.format("\n\nGyro (dps):  %+,.1f  %+,.1f  %+,.1f\n\nAcc    (G):  %+,.1f  %+,.1f  %+,.1f\n\nMag (norm):  %.3f  %.3f  %.3f\n\ndT (ms):  %3.0f",
-        dRoll, dPitch, dYaw, aX, aY, aZ, mag[0], mag[1], mag[2], dT * 1000));
-    threadCallbacks.onNewData(imuDataRaw);
+    // DATA PROCESSING: decode, detect, calibrate, filter, analytics, publish - on this thread or on workers (see configurePipeline)
+    ImuSample sample = pipelineInput;
+    System.arraycopy(imuData, 0, sample.report, 0, ImuSample.REPORT_SIZE);
+    sample.afterGap = afterGap;
+    sample.snapshot = null;
+    if (stateFile != null && uptimeNs - lastSnapshotUptimeNs >= SNAPSHOT_PERIOD_NS) {
+      // filled by the stages that own the state, written by the last one
+      lastSnapshotUptimeNs = uptimeNs;
+      sample.snapshot = ProcessingSnapshot.begin(uptimeNs);
+    }
+    pipeline.submit(sample);
   }
 
   private void processOtherData() {
-    byte btnIndex = otherData[22];
-    byte btnValue = otherData[30];
+    byte btnIndex = (byte) OtherReport.buttonIndex(otherData);
+    byte btnValue = (byte) OtherReport.buttonValue(otherData);
 
     // we have a partial understanding of the data
     if (btnIndex == 1) {
@@ -202,7 +451,7 @@ class NrealDeviceThread extends Thread {
         // Clicked power - screen is OFF
         threadCallbacks.onButtonPressedTemp(BUTTON_POWER, 0);
       } else
-        Log.e(TAG, "Unknown screen state: " + btnValue);
+        DriverLog.e(TAG, "Unknown screen state: " + btnValue);
     } else if (btnIndex == 2) {
       // Brightness up press
       threadCallbacks.onButtonPressedTemp(BUTTON_BRIGHTNESS_UP, btnValue);
@@ -212,14 +461,14 @@ class NrealDeviceThread extends Thread {
       threadCallbacks.onButtonPressedTemp(BUTTON_BRIGHTNESS_DOWN, btnValue);
       //mBrightness = btnValue;
     } else if (DEBUG_OTHER_COMMANDS)
-      Log.e(TAG, "Read Other bytes: 22: " + btnIndex + ", 15: " + otherData[15] + ", 30: " + otherData[30] + ", 23: " + otherData[23] + " - " + Arrays.toString(otherData));
+      DriverLog.e(TAG, "Read Other bytes: 22: " + btnIndex + ", 15: " + otherData[15] + ", 30: " + otherData[30] + ", 23: " + otherData[23] + " - " + Arrays.toString(otherData));
   }
 
   private boolean t_startImu() {
     // Issues the start reading magic command to the IMU
     // NOTE: compared to the hid_write implementations, this is missing the first byte as it's an internal command for the hid library
     byte[] magicPayload = {(byte) 0xaa, (byte) 0xc5, (byte) 0xd1, 0x21, 0x42, 0x04, 0x00, 0x19, 0x01};
-    return connection.bulkTransfer(imuOut, magicPayload, magicPayload.length, 200) >= 0;
+    return transport.writeImu(magicPayload, magicPayload.length, 200) >= 0;
   }
 
   private boolean t_startOther() {
@@ -229,11 +478,42 @@ class NrealDeviceThread extends Thread {
     return true;
   }
 
+  private void dumpFlightRecorder(String reason) {
+    if (flightRecorderDir == null)
+      return;
+    // serialize on this thread (a copy), write to file off the reader thread
+    byte[] dump = flightRecorder.serialize(reason);
+    File file = new File(flightRecorderDir, "flight_" + System.currentTimeMillis() + ".nfr");
+    fileWriter.execute(() -> {
+      try {
+        //noinspection ResultOfMethodCallIgnored
+        flightRecorderDir.mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+          out.write(dump);
+        }
+        deleteOldFlightRecorderDumps();
+        threadCallbacks.onMessage("Flight recorder (" + reason + ") dumped to " + file.getName() + ", " + dump.length / 1024 + " KB");
+      } catch (IOException e) {
+        DriverLog.e(TAG, "Could not write the flight recorder dump", e);
+      }
+    });
+  }
+
+  private void deleteOldFlightRecorderDumps() {
+    File[] dumps = flightRecorderDir.listFiles((dir, name) -> name.startsWith("flight_"));
+    if (dumps == null || dumps.length <= MAX_FLIGHT_RECORDER_DUMPS)
+      return;
+    Arrays.sort(dumps);
+    for (int i = 0; i < dumps.length - MAX_FLIGHT_RECORDER_DUMPS; i++)
+      //noinspection ResultOfMethodCallIgnored
+      dumps[i].delete();
+  }
+
   private void printHex(byte[] data, int from, int count, String prefix) {
     StringBuilder sb = new StringBuilder().append(prefix).append(from).append(": ");
     for (int i = from; i < from + count; i++)
       sb.append(String.format("%02X ", data[i] & 0xFF));
-    Log.e(TAG, sb.toString());
+    DriverLog.e(TAG, sb.toString());
   }
 
 }
@@ -0,0 +1,136 @@
+package com.enricoros.nreal.driver;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * The driver without Android, for desktop and server hosts and replays: the reader and the standard
+ * processing of {@link NrealManager} on a given transport (e.g. a {@link HidrawTransport}), with no
+ * Context, UI thread or preferences. The listener is called on the reader and processing threads,
+ * and the driver logs through {@link DriverLog}. Start and stop from one thread (the host's).
+ */
+public class NrealHostDriver {
+
+  private final NrealTransport transport;
+  private final Listener listener;
+  private final File stateDir;
+  private final StallWatchdog stallWatchdog = new StallWatchdog();
+
+  private volatile NrealDeviceThread mThread;
+
+
+  public interface Listener {
+    /**
+     * A processed sample. The object is reused after this returns, so copy what needs to be kept.
+     */
+    void onNewData(ImuDataRaw data);
+
+    /**
+     * The stream is over: with an error, or null at the end of a recording (after the last sample).
+     * Not called by stop().
+     */
+    void onStreamEnded(@Nullable String error);
+
+    default void onImuEvent(ImuEvent event) {
+    }
+
+    default void onButtonPressed(int buttonId, int relatedValue) {
+    }
+
+    default void onMessage(String message) {
+    }
+  }
+
+
+  /**
+   * @param stateDirectory where to keep the processing state across runs and the flight recorder
+   *                       dumps, or null for neither
+   */
+  public NrealHostDriver(@NonNull NrealTransport deviceTransport, @NonNull Listener hostListener, @Nullable File stateDirectory) {
+    transport = deviceTransport;
+    listener = hostListener;
+    stateDir = stateDirectory;
+  }
+
+  public void start() {
+    if (mThread != null)
+      throw new IllegalStateException("Already started");
+    NrealDeviceThread thread = new NrealDeviceThread(transport, mReaderCallbacks, stateDir != null ? new File(stateDir, "flight_recorder") : null,
+        stateDir != null ? new File(stateDir, "processing_state.bin") : null, null, stallWatchdog);
+    thread.setStatusTextEnabled(false);
+    thread.configurePipeline(Collections.emptyMap(), Collections.emptyList());
+    mThread = thread;
+    thread.start();
+  }
+
+  /**
+   * Stops reading, closes the transport, and waits for the processing state to be saved (so that
+   * the host can exit).
+   */
+  public void stop() {
+    if (mThread != null) {
+      mThread.quit();
+      mThread = null;
+    }
+    transport.close();
+    NrealDeviceThread.awaitFinalStateWrite();
+  }
+
+  public boolean isStreaming() {
+    NrealDeviceThread thread = mThread;
+    return thread != null && thread.isAlive();
+  }
+
+  /**
+   * @return the throughput and time of each processing stage and the queue depths, or null if not started
+   */
+  @Nullable
+  public String getPipelineReport() {
+    NrealDeviceThread thread = mThread;
+    return thread != null ? thread.getPipelineReport() : null;
+  }
+
+  /**
+   * @return the IMU stalls so far, and how they were recovered
+   */
+  @NonNull
+  public String getStallRecoveryReport() {
+    return stallWatchdog.report();
+  }
+
+
+  private final NrealDeviceThread.ThreadCallbacks mReaderCallbacks = new NrealDeviceThread.ThreadCallbacks() {
+    @Override
+    public void onConnectionError(String error) {
+      listener.onStreamEnded(error);
+    }
+
+    @Override
+    public void onNewData(ImuDataRaw data) {
+      listener.onNewData(data);
+    }
+
+    @Override
+    public void onButtonPressedTemp(int button, int value) {
+      listener.onButtonPressed(button, value);
+    }
+
+    @Override
+    public void onMessage(String message) {
+      listener.onMessage(message);
+    }
+
+    @Override
+    public void onImuEvent(ImuEvent event) {
+      listener.onImuEvent(event);
+    }
+
+    @Override
+    public void onEndOfStream() {
+      listener.onStreamEnded(null);
+    }
+  };
+}
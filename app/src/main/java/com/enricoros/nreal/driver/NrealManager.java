@@ -19,17 +19,33 @@ import android.util.Pair;
 
 import androidx.preference.PreferenceManager;
 
+import com.enricoros.nreal.driver.data.NoiseCharacterizer;
+import com.enricoros.nreal.driver.pipeline.ProcessingPipeline;
+import com.enricoros.nreal.driver.pipeline.ProcessingStage;
+
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /** @noinspection SameParameterValue */
 public class NrealManager {
 
+  // the standard processing stages, in pipeline order (see setStageThread)
+  public static final String STAGE_DECODE = "decode";
+  public static final String STAGE_DETECT = "detect";
+  public static final String STAGE_CALIBRATE = "calibrate";
+  public static final String STAGE_FILTER = "filter";
+  public static final String STAGE_ANALYTICS = "analytics";
+  public static final String STAGE_PUBLISH = "publish";
+
   private static final String TAG = "NrealManager";
 
-  private static final int NREAL_AIR_VENDOR_ID = 0x3318;
-  private static final int NREAL_AIR_PRODUCT_ID = 0x0424;
+  static final int NREAL_AIR_VENDOR_ID = 0x3318;
+  static final int NREAL_AIR_PRODUCT_ID = 0x0424;
 
   private static final String CUSTOM_BROADCAST_PERMISSION_ACTION = "ai.enrico.mindlet.NREAL_USB_PERMISSION";
 
@@ -38,9 +54,15 @@ public class NrealManager {
   private final Listener listener;
   private final UsbManager usbManager;
   private final SharedPreferences preferences;
+  private final StallWatchdog stallWatchdog = new StallWatchdog();
+  private final Map<String, String> stageThreads = new HashMap<>();
+  private final List<ProcessingStage> customStages = new ArrayList<>();
+  private final BroadcastReceiver usbPermissionReceiver;
 
-  private UsbDeviceConnection mDeviceConnection;
+  private NrealTransport mTransport;
   private NrealDeviceThread mThread;
+  private volatile ImuBatcher mBatcher;
+  private NoiseCharacterizer mNoiseCharacterizer;
 
 
   public interface Listener {
@@ -57,6 +79,20 @@ public class NrealManager {
     void onNewDataTemp(ImuDataRaw imuDataRawCopy);
 
     void onButtonPressedTemp(int buttonId, int relatedValue);
+
+    /**
+     * An impact, free fall or sensor saturation, reported shortly after it's over (see ImuEventDetector).
+     */
+    default void onImuEvent(ImuEvent event) {
+    }
+  }
+
+  public interface BatchListener {
+    /**
+     * Called on the UI thread with the samples buffered since the last batch. The batch is reused
+     * after this returns, so copy what needs to be kept.
+     */
+    void onImuBatch(ImuBatch batch);
   }
 
 
@@ -66,8 +102,8 @@ public class NrealManager {
     usbManager = (UsbManager) context.getSystemService(Context.USB_SERVICE);
     preferences = PreferenceManager.getDefaultSharedPreferences(context);
 
-    // Note: moved registration here to be sure we will not double-register this receiver
-    BroadcastReceiver mUsbPermissionReceiver = new BroadcastReceiver() {
+    // Note: moved registration here to be sure we will not double-register this receiver (unregistered by release())
+    usbPermissionReceiver = new BroadcastReceiver() {
       @Override
       public void onReceive(Context context, Intent intent) {
         if (!Objects.equals(intent.getAction(), CUSTOM_BROADCAST_PERMISSION_ACTION))
@@ -88,12 +124,20 @@ public class NrealManager {
     };
 
     // @noinspection UnspecifiedRegisterReceiverFlag
-    context.registerReceiver(mUsbPermissionReceiver, new IntentFilter(CUSTOM_BROADCAST_PERMISSION_ACTION));
+    context.registerReceiver(usbPermissionReceiver, new IntentFilter(CUSTOM_BROADCAST_PERMISSION_ACTION));
+  }
+
+  /**
+   * Closes the device, and stops listening for USB permissions: call when done with this manager.
+   */
+  public void release() {
+    closeNrealUsbDevice();
+    context.unregisterReceiver(usbPermissionReceiver);
   }
 
 
   public void connectToNrealUsbDevice() {
-    if (mDeviceConnection == null) {
+    if (mTransport == null) {
       // find the device on the list of USB devices
       UsbDevice nrealDevice = UsbUtils.usbFindConnectedDevice(usbManager, NREAL_AIR_VENDOR_ID, NREAL_AIR_PRODUCT_ID);
       if (nrealDevice == null) {
@@ -101,34 +145,173 @@ public class NrealManager {
         return;
       }
 
-      // ask the user for permissions; may continue right away to -> mUsbPermissionReceiver -> onUsbDevicePermissionGranted
+      // ask the user for permissions; may continue right away to -> usbPermissionReceiver -> onUsbDevicePermissionGranted
       PendingIntent permissionIntent = PendingIntent.getBroadcast(context, 0, new Intent(CUSTOM_BROADCAST_PERMISSION_ACTION), PendingIntent.FLAG_MUTABLE);
       usbManager.requestPermission(nrealDevice, permissionIntent);
     }
   }
 
+  /**
+   * Connects to a non-USB device (e.g. a stand-in device for hardware-free runs), instead of the attached glasses.
+   * Must be called on the main thread, and closed with {@link #closeNrealUsbDevice()} as usual.
+   */
+  public void connectToTransport(NrealTransport transport) {
+    if (mTransport != null) {
+      Log.e(TAG, "Device already opened and connected");
+      return;
+    }
+    mTransport = transport;
+    startNrealCommunication();
+  }
+
   public void closeNrealUsbDevice() {
     stopNrealCommunication();
-    if (mDeviceConnection != null) {
-      mDeviceConnection.close();
-      mDeviceConnection = null;
+    flushBatch();
+    if (mTransport != null) {
+      mTransport.close();
+      mTransport = null;
       mThread = null;
       listener.onDeviceDisconnected();
     }
   }
 
   public boolean isDeviceConnected() {
-    return mDeviceConnection != null;
+    return mTransport != null;
   }
 
   public boolean isDeviceStreaming() {
     return mThread != null && mThread.isAlive();
   }
 
+  /**
+   * Writes the last seconds of raw reports to a file in the app's files dir (also done automatically
+   * on read errors). The outcome is reported with onMessage().
+   */
+  public void dumpFlightRecorder() {
+    if (mThread == null) {
+      listener.onMessage("Flight recorder: not streaming");
+      return;
+    }
+    mThread.requestFlightRecorderDump();
+  }
+
+  /**
+   * Starts (or restarts) measuring the sensor noise: keep the glasses still, ideally for hours.
+   * Measurements continue across reconnects, until stopped.
+   */
+  public void startNoiseCharacterization() {
+    mNoiseCharacterizer = new NoiseCharacterizer();
+    if (mThread != null)
+      mThread.setNoiseCharacterizer(mNoiseCharacterizer);
+  }
+
+  public void stopNoiseCharacterization() {
+    mNoiseCharacterizer = null;
+    if (mThread != null)
+      mThread.setNoiseCharacterizer(null);
+  }
+
+  /**
+   * @return the noise density, bias instability and random walk figures so far, or null if not started
+   */
+  public String getNoiseCharacterizationReport() {
+    return mNoiseCharacterizer != null ? mNoiseCharacterizer.report() : null;
+  }
+
+  /**
+   * @return the IMU stalls so far (across connections), and how they were recovered
+   */
+  public String getStallRecoveryReport() {
+    return stallWatchdog.report();
+  }
+
+  /**
+   * Runs a processing stage, and the following ones not placed explicitly, on another thread - from
+   * the next connection. The thread is a worker (any name), or ProcessingPipeline.READER_THREAD
+   * where all the stages run by default: the reader can only run the first stages, and the stages
+   * of a worker must be consecutive. A null thread removes the explicit placement.
+   *
+   * @throws IllegalArgumentException if the stage is unknown, or the placement is not possible
+   */
+  public void setStageThread(String stageName, String threadName) {
+    Map<String, String> placement = new HashMap<>(stageThreads);
+    if (threadName != null)
+      placement.put(stageName, threadName);
+    else
+      placement.remove(stageName);
+    checkPipeline(placement, customStages, stageName);
+    stageThreads.clear();
+    stageThreads.putAll(placement);
+  }
+
+  /**
+   * Adds a stage after the analytics and the stages added before, from the next connection. Stages
+   * are called for every sample, so should not allocate, and must not keep the samples.
+   *
+   * @throws IllegalArgumentException if the name is taken
+   */
+  public void addProcessingStage(ProcessingStage stage) {
+    List<ProcessingStage> stages = new ArrayList<>(customStages);
+    stages.add(stage);
+    checkPipeline(stageThreads, stages, stage.getName());
+    customStages.add(stage);
+  }
+
+  /**
+   * @return the throughput and time of each processing stage and the queue depths, or null if not streaming
+   */
+  public String getPipelineReport() {
+    return mThread != null ? mThread.getPipelineReport() : null;
+  }
+
+  private static void checkPipeline(Map<String, String> placement, List<ProcessingStage> stages, String stageName) {
+    List<String> stageNames = NrealDeviceThread.getStageNames(stages);
+    if (!stageNames.contains(stageName))
+      throw new IllegalArgumentException("Unknown stage: " + stageName);
+    if (stageNames.size() != new HashSet<>(stageNames).size())
+      throw new IllegalArgumentException("Duplicate stage: " + stageName);
+    String error = ProcessingPipeline.checkPlacement(NrealDeviceThread.resolveStageThreads(stageNames, placement));
+    if (error != null)
+      throw new IllegalArgumentException("Processing stage " + stageName + ": " + error);
+  }
+
+  /**
+   * Batching mode, similar to Android's sensor batching: instead of one onNewDataTemp() per sample,
+   * samples are buffered and delivered to the batchListener at least every maxReportLatencyMs.
+   * Pass a null listener to go back to per-sample delivery (pending samples are flushed first).
+   *
+   * @throws IllegalArgumentException if batching with a maxReportLatencyMs that is not positive
+   */
+  public void setBatching(BatchListener batchListener, int maxReportLatencyMs) {
+    ImuBatcher previous = mBatcher;
+    mBatcher = batchListener != null ? new ImuBatcher(uiHandler, batchListener, maxReportLatencyMs) : null;
+    if (mThread != null)
+      mThread.setStatusTextEnabled(batchListener == null);
+    if (previous != null)
+      previous.flush();
+  }
+
+  /**
+   * Delivers the buffered samples right away, without waiting for the max report latency.
+   */
+  public void flushBatch() {
+    ImuBatcher batcher = mBatcher;
+    if (batcher != null)
+      batcher.flush();
+  }
+
+  /**
+   * Number of UI thread wakeups avoided by batching (samples delivered in batches, minus batches).
+   */
+  public long getBatchingWakeupsSaved() {
+    ImuBatcher batcher = mBatcher;
+    return batcher != null ? batcher.getWakeupsSaved() : 0;
+  }
+
 
   private void onUsbDevicePermissionGranted(UsbDevice device) {
     // [DEV] sanity check
-    if (mDeviceConnection != null) {
+    if (mTransport != null) {
       Log.e(TAG, "Device already opened and connected");
       return;
     }
@@ -161,28 +344,34 @@ public class NrealManager {
     }
 
     // connect to the device, and claim all interfaces
-    mDeviceConnection = usbManager.openDevice(device);
-    if (mDeviceConnection == null) {
+    UsbDeviceConnection deviceConnection = usbManager.openDevice(device);
+    if (deviceConnection == null) {
       listener.onConnectionError("Could not open device");
       return;
     }
-    for (UsbInterface i : usbInterfaces) {
-      if (!mDeviceConnection.claimInterface(i, true)) {
-        listener.onConnectionError("Could not claim interface " + i.getId() + ":" + i.getAlternateSetting());
-        return;
-      }
+    UsbTransport usbTransport = new UsbTransport(deviceConnection, usbInterfaces, imuEndpoints, otherEndpoints);
+    mTransport = usbTransport;
+    String claimError = usbTransport.claimInterfaces();
+    if (claimError != null) {
+      listener.onConnectionError(claimError);
+      return;
     }
 
-    // start
+    startNrealCommunication();
+  }
+
+  private void startNrealCommunication() {
     listener.onDeviceConnected();
 
     if (mThread != null) {
       Log.e(TAG, "Reader thread already running");
       return;
     }
-    mThread = new NrealDeviceThread(mDeviceConnection, imuEndpoints, otherEndpoints, mReaderCallbacks);
-    if (mThread.restoreState(preferences))
-      listener.onMessage("Restored Calibration");
+    mThread = new NrealDeviceThread(mTransport, mReaderCallbacks, new File(context.getFilesDir(), "flight_recorder"), new File(context.getFilesDir(), "processing_state.bin"),
+        preferences.getString("magnetometer_calibration", null), stallWatchdog);
+    mThread.setNoiseCharacterizer(mNoiseCharacterizer);
+    mThread.setStatusTextEnabled(mBatcher == null);
+    mThread.configurePipeline(stageThreads, customStages);
     mThread.start();
   }
 
@@ -197,6 +386,11 @@ public class NrealManager {
 
     @Override
     public void onNewData(ImuDataRaw data) {
+      ImuBatcher batcher = mBatcher;
+      if (batcher != null) {
+        batcher.add(data);
+        return;
+      }
       ImuDataRaw dataCopy = new ImuDataRaw(data);
       uiHandler.post(() -> listener.onNewDataTemp(dataCopy));
     }
@@ -205,12 +399,29 @@ public class NrealManager {
     public void onButtonPressedTemp(int button, int value) {
       uiHandler.post(() -> listener.onButtonPressedTemp(button, value));
     }
+
+    @Override
+    public void onMessage(String message) {
+      uiHandler.post(() -> listener.onMessage(message));
+    }
+
+    @Override
+    public void onImuEvent(ImuEvent event) {
+      uiHandler.post(() -> listener.onImuEvent(event));
+    }
+
+    @Override
+    public void onEndOfStream() {
+      uiHandler.post(() -> {
+        listener.onMessage("End of the IMU stream");
+        closeNrealUsbDevice();
+      });
+    }
   };
 
   private void stopNrealCommunication() {
     if (mThread != null) {
-      mThread.quit();
-      mThread.saveState(preferences);
+      mThread.quit(); // the reader queues its final processing state, written in the background
       mThread = null;
     }
   }
@@ -0,0 +1,35 @@
+package com.enricoros.nreal.driver;
+
+/**
+ * Byte pipe to the glasses: the IMU interface (in + out) and the 'other' (buttons) interface (in).
+ * Calls mirror {@link android.hardware.usb.UsbDeviceConnection#bulkTransfer}: they return the number of
+ * bytes transferred, or a negative value on error or timeout.
+ * <p>
+ * Implemented by the USB connection on Android, by hidraw devices on Linux hosts, and by stand-in
+ * devices for hardware-free runs.
+ */
+public interface NrealTransport {
+
+  int readImu(byte[] buffer, int length, int timeoutMs);
+
+  int writeImu(byte[] buffer, int length, int timeoutMs);
+
+  int readOther(byte[] buffer, int length, int timeoutMs);
+
+  /**
+   * Re-acquires the interfaces of the open connection, e.g. after a hiccup of the USB link.
+   *
+   * @return true on success
+   */
+  boolean reclaim();
+
+  /**
+   * @return true once the source has no more reports, for good (e.g. a recording read to its end):
+   * the reads fail from then on, and that is not an error
+   */
+  default boolean isEndOfStream() {
+    return false;
+  }
+
+  void close();
+}
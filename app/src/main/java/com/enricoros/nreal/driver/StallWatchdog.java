@@ -0,0 +1,129 @@
+package com.enricoros.nreal.driver;
+
+import android.annotation.SuppressLint;
+
+import androidx.annotation.NonNull;
+
+import com.enricoros.nreal.driver.data.RunningStats;
+
+/**
+ * Stall detection for the IMU stream, and statistics of the recoveries.
+ * <p>
+ * The report period is learned from the device uptime of the reports, and a read that does not
+ * complete within a few periods is a stall. The reader then escalates: retry the read, restart the
+ * IMU stream, reclaim the interfaces - keeping all the processing state - and only gives up (closing
+ * the device) if none of them brings valid reports back.
+ * <p>
+ * Whether reports were lost (a gap, restarting the integration downstream) is told by the uptime of
+ * the reports only: a late read that still brings the next report is not a gap.
+ * <p>
+ * Cadence methods are called on the reader thread, the statistics can be read from any thread.
+ */
+class StallWatchdog {
+
+  static final int RETRY_READ = 0;
+  static final int RESTART_IMU = 1;
+  static final int RECLAIM_INTERFACES = 2;
+  static final int LEVELS = 3;
+  private static final String[] LEVEL_NAMES = {"read retry", "IMU restart", "interface reclaim"};
+
+  private static final int STALL_PERIODS = 5;
+  private static final int MIN_READ_TIMEOUT_MS = 2; // above the scheduling jitter of the reader
+  private static final int MAX_READ_TIMEOUT_MS = 200;
+  private static final long MAX_PERIOD_NS = 100_000_000L;
+  private static final int GAP_PERIODS = 4;
+
+  // written by the reader thread (periodNs also read by report())
+  private volatile long lastUptimeNs = 0;
+  private volatile double periodNs = 0;
+
+  // statistics
+  private long stalls = 0;
+  private final long[] recoveries = new long[LEVELS];
+  private long failures = 0;
+  private final RunningStats recoveryMs = new RunningStats();
+  private double maxRecoveryMs = 0;
+
+  /**
+   * At the start of the stream of a new connection: its first report follows a gap.
+   */
+  void onStreamStart() {
+    lastUptimeNs = 0;
+  }
+
+  /**
+   * @return true if the report does not follow the previous one: the first one of the stream, or
+   * after more than GAP_PERIODS periods (lost reports), or after the uptime went backwards
+   */
+  boolean onSample(long uptimeNs) {
+    long previousNs = lastUptimeNs;
+    lastUptimeNs = uptimeNs;
+    if (previousNs == 0)
+      return true;
+    long deltaNs = uptimeNs - previousNs;
+    double period = periodNs;
+    boolean gap = deltaNs <= 0 || deltaNs > (period > 0 ? GAP_PERIODS * period : MAX_PERIOD_NS);
+    if (!gap && deltaNs < MAX_PERIOD_NS)
+      periodNs = period == 0 ? deltaNs : period + (deltaNs - period) / 64;
+    return gap;
+  }
+
+  /**
+   * Timeout of the IMU reads: STALL_PERIODS report periods (5 ms at 1 kHz), or a generous one until
+   * the period is known.
+   */
+  int getReadTimeoutMs() {
+    if (periodNs == 0)
+      return MAX_READ_TIMEOUT_MS;
+    int timeoutMs = (int) Math.ceil(STALL_PERIODS * periodNs / 1e6);
+    return Math.max(MIN_READ_TIMEOUT_MS, Math.min(MAX_READ_TIMEOUT_MS, timeoutMs));
+  }
+
+  /**
+   * Timeout of the reads after restarting the stream, which can take longer to resume.
+   */
+  int getRecoveryReadTimeoutMs(int level) {
+    return level == RETRY_READ ? getReadTimeoutMs() : MAX_READ_TIMEOUT_MS / 2;
+  }
+
+  synchronized void onStall() {
+    stalls++;
+  }
+
+  synchronized void onRecovered(int level, long durationNs) {
+    recoveries[level]++;
+    double ms = durationNs / 1e6;
+    recoveryMs.add(ms);
+    maxRecoveryMs = Math.max(maxRecoveryMs, ms);
+  }
+
+  synchronized void onRecoveryFailed() {
+    failures++;
+  }
+
+  synchronized long getStalls() {
+    return stalls;
+  }
+
+  synchronized long getRecoveries(int level) {
+    return recoveries[level];
+  }
+
+  synchronized long getFailures() {
+    return failures;
+  }
+
+  @NonNull
+  @SuppressLint("DefaultLocale")
+  synchronized String report() {
+    StringBuilder sb = new StringBuilder();
+    long recovered = recoveryMs.getCount();
+    sb.append(String.format("IMU stalls: %d, recovered %d (%.0f%%), failed %d; period %.3f ms, stall detection after %d ms\n",
+        stalls, recovered, stalls > 0 ? 100.0 * recovered / stalls : 100.0, failures, periodNs / 1e6, getReadTimeoutMs()));
+    for (int level = 0; level < LEVELS; level++)
+      sb.append(String.format(" - by %s: %d\n", LEVEL_NAMES[level], recoveries[level]));
+    if (recovered > 0)
+      sb.append(String.format(" - recovery time: avg %.1f ms, max %.1f ms\n", recoveryMs.getMean(), maxRecoveryMs));
+    return sb.toString();
+  }
+}
@@ -0,0 +1,68 @@
+package com.enricoros.nreal.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.util.Pair;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Transport over an Android USB connection, with the interfaces and endpoints found by the {@link NrealManager}.
+ */
+class UsbTransport implements NrealTransport {
+
+  private final UsbDeviceConnection connection;
+  private final List<UsbInterface> interfaces;
+  private final UsbEndpoint imuIn;
+  private final UsbEndpoint imuOut;
+  private final UsbEndpoint otherIn;
+
+  UsbTransport(UsbDeviceConnection deviceConnection, List<UsbInterface> usbInterfaces, Pair<UsbEndpoint, UsbEndpoint> imuEndpoints, Pair<UsbEndpoint, UsbEndpoint> otherEndpoints) {
+    connection = deviceConnection;
+    interfaces = usbInterfaces;
+    imuIn = imuEndpoints.first;
+    imuOut = imuEndpoints.second;
+    otherIn = otherEndpoints.first;
+  }
+
+  /**
+   * @return null on success, or the error message
+   */
+  @Nullable
+  String claimInterfaces() {
+    for (UsbInterface i : interfaces)
+      if (!connection.claimInterface(i, true))
+        return "Could not claim interface " + i.getId() + ":" + i.getAlternateSetting();
+    return null;
+  }
+
+  @Override
+  public boolean reclaim() {
+    for (UsbInterface i : interfaces)
+      connection.releaseInterface(i);
+    return claimInterfaces() == null;
+  }
+
+  @Override
+  public int readImu(byte[] buffer, int length, int timeoutMs) {
+    return connection.bulkTransfer(imuIn, buffer, length, timeoutMs);
+  }
+
+  @Override
+  public int writeImu(byte[] buffer, int length, int timeoutMs) {
+    return connection.bulkTransfer(imuOut, buffer, length, timeoutMs);
+  }
+
+  @Override
+  public int readOther(byte[] buffer, int length, int timeoutMs) {
+    return connection.bulkTransfer(otherIn, buffer, length, timeoutMs);
+  }
+
+  @Override
+  public void close() {
+    connection.close();
+  }
+}
@@ -0,0 +1,77 @@
+package com.enricoros.nreal.driver.data;
+
+/**
+ * Streaming (non-overlapping) Allan variance at octave-spaced cluster sizes: 1, 2, 4, ... samples.
+ * Each level averages pairs of clusters of the level below, so memory is logarithmic in the session
+ * length, and the cost is amortized to ~2 updates per sample.
+ */
+public class AllanDeviation {
+  private static final int MAX_LEVELS = 40;
+
+  private final double[] prevAverage = new double[MAX_LEVELS];
+  private final boolean[] hasPrev = new boolean[MAX_LEVELS];
+  private final double[] pendingAverage = new double[MAX_LEVELS];
+  private final boolean[] hasPending = new boolean[MAX_LEVELS];
+  private final double[] sumSquaredDiffs = new double[MAX_LEVELS];
+  private final long[] diffCounts = new long[MAX_LEVELS];
+  private int levels = 0;
+
+  public void add(double value) {
+    addAverage(0, value);
+  }
+
+  /**
+   * Call when samples were lost (e.g. reconnect): clusters are not formed across the gap.
+   */
+  public void markGap() {
+    for (int i = 0; i < MAX_LEVELS; i++)
+      hasPrev[i] = hasPending[i] = false;
+  }
+
+  /**
+   * @return number of cluster sizes with at least one difference
+   */
+  public int getLevels() {
+    return levels;
+  }
+
+  public long getClusterSize(int level) {
+    return 1L << level;
+  }
+
+  public long getDifferenceCount(int level) {
+    return diffCounts[level];
+  }
+
+  /**
+   * Allan deviation at the given level, in the units of the input.
+   */
+  public double getDeviation(int level) {
+    return diffCounts[level] > 0 ? Math.sqrt(sumSquaredDiffs[level] / (2.0 * diffCounts[level])) : Double.NaN;
+  }
+
+  private void addAverage(int level, double average) {
+    while (true) {
+      if (hasPrev[level]) {
+        double diff = average - prevAverage[level];
+        sumSquaredDiffs[level] += diff * diff;
+        if (diffCounts[level]++ == 0 && level >= levels)
+          levels = level + 1;
+      }
+      prevAverage[level] = average;
+      hasPrev[level] = true;
+
+      // pair with the previous cluster to form a cluster of the next level
+      if (!hasPending[level]) {
+        pendingAverage[level] = average;
+        hasPending[level] = true;
+        return;
+      }
+      hasPending[level] = false;
+      if (level + 1 >= MAX_LEVELS)
+        return;
+      average = (pendingAverage[level] + average) / 2;
+      level++;
+    }
+  }
+}
@@ -13,6 +13,7 @@ public class MagnetometerPreprocessor {
   private final float[] normalizedData;
   private final float[] filteredData;
   private boolean firstSample;
+  private boolean primeFilter;
 
   public MagnetometerPreprocessor(float cutoffFrequency, int minIntRange) {
     this.cutoffFrequency = cutoffFrequency;
@@ -48,9 +49,10 @@ public class MagnetometerPreprocessor {
       Arrays.fill(normalizedData, 0);
     }
 
-    if (firstSample) {
+    if (firstSample || primeFilter) {
       System.arraycopy(normalizedData, 0, prevFilteredData, 0, 3);
       firstSample = false;
+      primeFilter = false;
       return normalizedData;
     }
 
@@ -76,6 +78,7 @@ public class MagnetometerPreprocessor {
 
   public void resetCalibration() {
     firstSample = true;
+    primeFilter = false;
   }
 
   public int[] saveCalibration() {
@@ -91,8 +94,8 @@ public class MagnetometerPreprocessor {
     if (calibrationData.length == 6) {
       System.arraycopy(calibrationData, 0, minValues, 0, 3);
       System.arraycopy(calibrationData, 3, maxValues, 0, 3);
-      Arrays.fill(prevFilteredData, 0);
       firstSample = false;
+      primeFilter = true; // start the low-pass from the first sample, not from 0
     } else {
       throw new IllegalArgumentException("Calibration data must have exactly 6 elements");
     }
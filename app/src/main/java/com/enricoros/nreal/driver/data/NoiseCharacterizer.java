@@ -0,0 +1,146 @@
+package com.enricoros.nreal.driver.data;
+
+import android.annotation.SuppressLint;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Noise characterization of the gyro (dps) and accelerometer (g) axes, from a static recording:
+ * per-axis running mean/variance and streaming Allan deviation, summarized as
+ * - noise density (angle/velocity random walk): Allan deviation at tau = 1 s
+ * - bias instability: minimum of the Allan deviation / 0.664
+ * - rate random walk: from the +1/2 slope at long tau, K = adev * sqrt(3 / tau)
+ * <p>
+ * Channels 0-2 are the gyro X, Y, Z axes, 3-5 the accelerometer's. Fed on the reader thread, read
+ * from any thread.
+ */
+public class NoiseCharacterizer {
+  private static final int CHANNELS = 6;
+  private static final String[] CHANNEL_NAMES = {"gyro X", "gyro Y", "gyro Z", "accel X", "accel Y", "accel Z"};
+  private static final double BIAS_INSTABILITY_FACTOR = 0.664; // sqrt(2 ln2 / pi)
+  private static final int MIN_DIFFERENCES = 8;
+
+  private final RunningStats[] stats = new RunningStats[CHANNELS];
+  private final AllanDeviation[] allan = new AllanDeviation[CHANNELS];
+  private final RunningStats samplePeriod = new RunningStats();
+
+  public NoiseCharacterizer() {
+    for (int i = 0; i < CHANNELS; i++) {
+      stats[i] = new RunningStats();
+      allan[i] = new AllanDeviation();
+    }
+  }
+
+  public synchronized void add(float gyroX, float gyroY, float gyroZ, float accelX, float accelY, float accelZ, float dT) {
+    samplePeriod.add(dT);
+    addChannel(0, gyroX);
+    addChannel(1, gyroY);
+    addChannel(2, gyroZ);
+    addChannel(3, accelX);
+    addChannel(4, accelY);
+    addChannel(5, accelZ);
+  }
+
+  public synchronized void markGap() {
+    for (AllanDeviation a : allan)
+      a.markGap();
+  }
+
+  public synchronized long getSampleCount() {
+    return samplePeriod.getCount();
+  }
+
+  /**
+   * @return the noise density (Allan deviation at 1 s) of the channel, in units/sqrt(Hz), or NaN
+   * before the first cluster
+   */
+  public synchronized double getNoiseDensity(int channel) {
+    double tau0 = samplePeriod.getMean();
+    AllanDeviation a = allan[channel];
+    // adev at 1s (log-log interpolation), or extrapolated with the white noise slope
+    double density = Double.NaN;
+    for (int l = 0; l + 1 < a.getLevels(); l++) {
+      double t1 = tau0 * a.getClusterSize(l), t2 = tau0 * a.getClusterSize(l + 1);
+      if (t1 <= 1 && t2 >= 1 && a.getDifferenceCount(l + 1) >= MIN_DIFFERENCES) {
+        double f = Math.log(1 / t1) / Math.log(t2 / t1);
+        density = Math.exp(Math.log(a.getDeviation(l)) * (1 - f) + Math.log(a.getDeviation(l + 1)) * f);
+      }
+    }
+    if (Double.isNaN(density) && a.getLevels() > 0)
+      density = a.getDeviation(0) * Math.sqrt(tau0);
+    return density;
+  }
+
+  /**
+   * @return the rate random walk of the channel, in units/sqrt(s), or NaN if the Allan deviation is
+   * not rising at the longest tau (yet)
+   */
+  public synchronized double getRateRandomWalk(int channel) {
+    double tau0 = samplePeriod.getMean();
+    AllanDeviation a = allan[channel];
+    int lastLevel = a.getLevels() - 1;
+    while (lastLevel >= 0 && a.getDifferenceCount(lastLevel) < MIN_DIFFERENCES)
+      lastLevel--;
+    if (lastLevel < 1)
+      return Double.NaN;
+    double slope = Math.log(a.getDeviation(lastLevel) / a.getDeviation(lastLevel - 1)) / Math.log(2);
+    if (slope <= 0.25)
+      return Double.NaN;
+    double tau = tau0 * a.getClusterSize(lastLevel);
+    return a.getDeviation(lastLevel) * Math.sqrt(3 / tau);
+  }
+
+  @NonNull
+  @SuppressLint("DefaultLocale")
+  public synchronized String report() {
+    double tau0 = samplePeriod.getMean();
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Noise characterization: %d samples, %.1f s, period %.3f ms (std %.3f ms)\n",
+        samplePeriod.getCount(), samplePeriod.getCount() * tau0, tau0 * 1000, samplePeriod.getStdDev() * 1000));
+    if (samplePeriod.getCount() < 2)
+      return sb.toString();
+
+    for (int c = 0; c < CHANNELS; c++) {
+      boolean gyro = c < 3;
+      AllanDeviation a = allan[c];
+
+      double density = getNoiseDensity(c);
+
+      // bias instability: flat bottom of the curve
+      double minDev = Double.MAX_VALUE, minTau = 0;
+      for (int l = 0; l < a.getLevels(); l++) {
+        if (a.getDifferenceCount(l) >= MIN_DIFFERENCES && a.getDeviation(l) < minDev) {
+          minDev = a.getDeviation(l);
+          minTau = tau0 * a.getClusterSize(l);
+        }
+      }
+
+      // rate random walk: only when the curve is rising at the longest tau
+      double randomWalk = getRateRandomWalk(c);
+
+      if (gyro)
+        sb.append(String.format(" - %s: mean %+.4f dps, std %.4f dps | ARW %.4f dps/sqrt(Hz) (%.3f deg/sqrt(h)) | bias instability %.2f deg/h @ %.1f s | RRW %s\n",
+            CHANNEL_NAMES[c], stats[c].getMean(), stats[c].getStdDev(), density, density * 60, minDev / BIAS_INSTABILITY_FACTOR * 3600, minTau,
+            Double.isNaN(randomWalk) ? "n/a (not reached)" : String.format("%.5f dps/sqrt(s)", randomWalk)));
+      else
+        sb.append(String.format(" - %s: mean %+.5f g, std %.5f g | VRW %.1f ug/sqrt(Hz) | bias instability %.1f ug @ %.1f s | random walk %s\n",
+            CHANNEL_NAMES[c], stats[c].getMean(), stats[c].getStdDev(), density * 1e6, minDev / BIAS_INSTABILITY_FACTOR * 1e6, minTau,
+            Double.isNaN(randomWalk) ? "n/a (not reached)" : String.format("%.2f ug/sqrt(s)", randomWalk * 1e6)));
+    }
+
+    // the raw curve, for plotting
+    sb.append(" - Allan deviation (tau s: gyro X Y Z dps, accel X Y Z g):\n");
+    for (int l = 0; l < allan[0].getLevels(); l++) {
+      sb.append(String.format("   %10.4f:", tau0 * allan[0].getClusterSize(l)));
+      for (int c = 0; c < CHANNELS; c++)
+        sb.append(String.format(" %.3e", allan[c].getDeviation(l)));
+      sb.append(String.format(" (n=%d)\n", allan[0].getDifferenceCount(l)));
+    }
+    return sb.toString();
+  }
+
+  private void addChannel(int channel, float value) {
+    stats[channel].add(value);
+    allan[channel].add(value);
+  }
+}
@@ -0,0 +1,69 @@
+package com.enricoros.nreal.driver.data;
+
+/**
+ * Adaptive low-pass ('1 Euro' filter, Casiez et al. 2012) over a few channels: the cutoff rises
+ * with the speed of the signal, so it removes jitter when still and adds little lag when moving.
+ * <p>
+ * - minCutoffHz: cutoff when still (lower = less jitter, more lag)
+ * - beta: how fast the cutoff grows with the speed (higher = less lag on fast motion)
+ * - derivativeCutoffHz: smoothing of the speed estimate
+ * <p>
+ * No allocations per sample: the returned array is reused by the next call.
+ */
+public class OneEuroFilter {
+  private final int channels;
+  private final float minCutoffHz;
+  private final float beta;
+  private final float derivativeCutoffHz;
+
+  private final float[] prevFilteredData;
+  private final float[] prevDerivative;
+  private final float[] filteredData;
+  private boolean firstSample;
+
+  public OneEuroFilter(int channels, float minCutoffHz, float beta, float derivativeCutoffHz) {
+    this.channels = channels;
+    this.minCutoffHz = minCutoffHz;
+    this.beta = beta;
+    this.derivativeCutoffHz = derivativeCutoffHz;
+    this.prevFilteredData = new float[channels];
+    this.prevDerivative = new float[channels];
+    this.filteredData = new float[channels];
+    this.firstSample = true;
+  }
+
+  public float[] process(float[] data, float dT) {
+    if (firstSample || dT <= 0) {
+      System.arraycopy(data, 0, prevFilteredData, 0, channels);
+      System.arraycopy(data, 0, filteredData, 0, channels);
+      firstSample = false;
+      return filteredData;
+    }
+
+    float alphaDerivative = alpha(derivativeCutoffHz, dT);
+    for (int i = 0; i < channels; i++) {
+      // smoothed speed of the signal
+      float derivative = (data[i] - prevFilteredData[i]) / dT;
+      float smoothedDerivative = prevDerivative[i] + alphaDerivative * (derivative - prevDerivative[i]);
+      prevDerivative[i] = smoothedDerivative;
+
+      // speed-dependent cutoff
+      float cutoff = minCutoffHz + beta * Math.abs(smoothedDerivative);
+      float alpha = alpha(cutoff, dT);
+      filteredData[i] = prevFilteredData[i] + alpha * (data[i] - prevFilteredData[i]);
+      prevFilteredData[i] = filteredData[i];
+    }
+    return filteredData;
+  }
+
+  public void reset() {
+    firstSample = true;
+    for (int i = 0; i < channels; i++)
+      prevDerivative[i] = 0;
+  }
+
+  private static float alpha(float cutoffHz, float dT) {
+    float tau = 1f / (2f * (float) Math.PI * cutoffHz);
+    return 1f / (1f + tau / dT);
+  }
+}
@@ -0,0 +1,125 @@
+package com.enricoros.nreal.driver.data;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Adaptive state of the processing chain, for a warm start on the next connection: the
+ * magnetometer calibration (min/max), which describes the sensor. The filter states are not kept:
+ * a filter primed from the first sample is as good even after a quick reconnection (see
+ * WarmStartEvaluatorTest). There is no other adaptive state to keep: the driver estimates no gyro
+ * bias, and the device clock is not mapped to the host's.
+ * <p>
+ * Binary format (little endian): 'NRWS' magic, version, host wall time (ms), device uptime (ns),
+ * presence flags, then the present blocks (ints/floats), and a CRC32 of all the previous bytes.
+ */
+public class ProcessingSnapshot {
+
+  private static final int MAGIC = 0x5357524E; // 'NRWS' in little endian
+  private static final int VERSION = 1;
+  private static final int FLAG_MAG_CALIBRATION = 1;
+
+  public final long wallTimeMs;
+  public final long uptimeNs;
+  private int[] magCalibration;
+
+  private ProcessingSnapshot(long wallTimeMs, long uptimeNs, int[] magCalibration) {
+    this.wallTimeMs = wallTimeMs;
+    this.uptimeNs = uptimeNs;
+    this.magCalibration = magCalibration;
+  }
+
+  /**
+   * Copies the state: call on the thread that owns the processing objects.
+   */
+  @NonNull
+  public static ProcessingSnapshot capture(long uptimeNs, MagnetometerPreprocessor magnetometerPreprocessor) {
+    ProcessingSnapshot snapshot = begin(uptimeNs);
+    snapshot.captureMagnetometer(magnetometerPreprocessor);
+    return snapshot;
+  }
+
+  /**
+   * An empty snapshot, for the processing objects to be captured separately (e.g. by pipeline
+   * stages on different threads, each on its own).
+   */
+  @NonNull
+  public static ProcessingSnapshot begin(long uptimeNs) {
+    return new ProcessingSnapshot(System.currentTimeMillis(), uptimeNs, null);
+  }
+
+  public void captureMagnetometer(MagnetometerPreprocessor magnetometerPreprocessor) {
+    magCalibration = magnetometerPreprocessor.saveCalibration();
+  }
+
+  /**
+   * @return a description of what was restored, or null (to be called before the first sample)
+   */
+  @Nullable
+  public String restore(MagnetometerPreprocessor magnetometerPreprocessor) {
+    if (magCalibration == null)
+      return null;
+    magnetometerPreprocessor.restoreCalibration(magCalibration);
+    return "calibration";
+  }
+
+  /**
+   * Only used to migrate the calibration that was saved as a string preference.
+   */
+  @NonNull
+  public static ProcessingSnapshot ofCalibration(int[] magCalibration) {
+    return new ProcessingSnapshot(0, 0, magCalibration);
+  }
+
+  @NonNull
+  public byte[] serialize() {
+    int flags = magCalibration != null ? FLAG_MAG_CALIBRATION : 0;
+    int size = 4 + 4 + 8 + 8 + 4 + 4 * (magCalibration != null ? magCalibration.length : 0) + 4;
+    ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    out.putInt(MAGIC).putInt(VERSION).putLong(wallTimeMs).putLong(uptimeNs).putInt(flags);
+    if (magCalibration != null)
+      for (int v : magCalibration)
+        out.putInt(v);
+    CRC32 crc = new CRC32();
+    crc.update(out.array(), 0, out.position());
+    out.putInt((int) crc.getValue());
+    return out.array();
+  }
+
+  /**
+   * @return the snapshot, or null if the data is not a valid snapshot (e.g. truncated)
+   */
+  @Nullable
+  public static ProcessingSnapshot parse(@NonNull byte[] data) {
+    if (data.length < 4 + 4 + 8 + 8 + 4 + 4)
+      return null;
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length - 4);
+    ByteBuffer in = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    if (in.getInt(data.length - 4) != (int) crc.getValue() || in.getInt() != MAGIC || in.getInt() != VERSION)
+      return null;
+    try {
+      long wallTimeMs = in.getLong();
+      long uptimeNs = in.getLong();
+      int flags = in.getInt();
+      if ((flags & ~FLAG_MAG_CALIBRATION) != 0)
+        return null;
+      int[] magCalibration = null;
+      if ((flags & FLAG_MAG_CALIBRATION) != 0) {
+        magCalibration = new int[6];
+        for (int i = 0; i < 6; i++)
+          magCalibration[i] = in.getInt();
+      }
+      if (in.remaining() != 4)
+        return null;
+      return new ProcessingSnapshot(wallTimeMs, uptimeNs, magCalibration);
+    } catch (BufferUnderflowException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package com.enricoros.nreal.driver.data;
+
+/**
+ * Running mean and variance (Welford's algorithm), numerically stable over very long sessions.
+ */
+public class RunningStats {
+  private long count;
+  private double mean;
+  private double m2;
+
+  public void add(double value) {
+    count++;
+    double delta = value - mean;
+    mean += delta / count;
+    m2 += delta * (value - mean);
+  }
+
+  public void reset() {
+    count = 0;
+    mean = 0;
+    m2 = 0;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public double getVariance() {
+    return count > 1 ? m2 / (count - 1) : 0;
+  }
+
+  public double getStdDev() {
+    return Math.sqrt(getVariance());
+  }
+}
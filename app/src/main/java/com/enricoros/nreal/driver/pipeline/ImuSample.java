@@ -0,0 +1,61 @@
+package com.enricoros.nreal.driver.pipeline;
+
+import androidx.annotation.NonNull;
+
+import com.enricoros.nreal.driver.data.ProcessingSnapshot;
+
+/**
+ * One IMU report on its way through a {@link ProcessingPipeline}: the raw report, and the values
+ * added by the stages. Samples are preallocated and copied into the queues between threads (never
+ * shared), so stages can write them freely, but must not keep references to them or their arrays.
+ */
+public final class ImuSample {
+
+  public static final int REPORT_SIZE = 64;
+
+  // input (reader)
+  public final byte[] report = new byte[REPORT_SIZE];
+  /** First sample after a gap in the stream (connection start, stall recovery). */
+  public boolean afterGap;
+  /** Processing state being captured, by the stages that own it - rarely set. */
+  public ProcessingSnapshot snapshot;
+  /** Set by the stage that stops the sample on purpose: counted as skipped, not dropped. */
+  public boolean skipped;
+
+  // decoded
+  public long uptimeNs;
+  /** No time delta (dT is 0): the first sample after a gap, which only primes the timing. */
+  public boolean timingOnly;
+  public float dT;
+  public final int[] angVelRaw = new int[3];
+  public final int[] accelRaw = new int[3];
+  public final int[] magRaw = new int[3];
+  public final float[] gyroDps = new float[3];
+  public final float[] accelG = new float[3];
+  /** Impact, free fall or saturation on this sample (ImuEvent types), 0 almost always. */
+  public int eventFlags;
+
+  // processed
+  public final float[] accelSmoothedG = new float[3];
+  public final float[] magNormalized = new float[3];
+
+  void copyFrom(@NonNull ImuSample other) {
+    System.arraycopy(other.report, 0, report, 0, REPORT_SIZE);
+    afterGap = other.afterGap;
+    snapshot = other.snapshot;
+    skipped = other.skipped;
+    uptimeNs = other.uptimeNs;
+    timingOnly = other.timingOnly;
+    dT = other.dT;
+    eventFlags = other.eventFlags;
+    for (int axis = 0; axis < 3; axis++) {
+      angVelRaw[axis] = other.angVelRaw[axis];
+      accelRaw[axis] = other.accelRaw[axis];
+      magRaw[axis] = other.magRaw[axis];
+      gyroDps[axis] = other.gyroDps[axis];
+      accelG[axis] = other.accelG[axis];
+      accelSmoothedG[axis] = other.accelSmoothedG[axis];
+      magNormalized[axis] = other.magNormalized[axis];
+    }
+  }
+}
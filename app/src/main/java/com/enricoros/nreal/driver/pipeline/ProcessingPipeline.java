@@ -0,0 +1,289 @@
+package com.enricoros.nreal.driver.pipeline;
+
+import android.annotation.SuppressLint;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.enricoros.nreal.driver.DriverLog;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Processing of the IMU samples, composed at runtime: stages run in the order they were added, each
+ * on the reader thread (synchronously, within submit()) or on a named worker thread. Consecutive
+ * stages on the same thread form a segment, and segments are connected by preallocated bounded
+ * {@link StageQueue}s - so an expensive stage can be moved off the USB reading path, without
+ * allocations per sample.
+ * <p>
+ * Placement rules: the reader stages come first, and the stages of a worker are consecutive.
+ * The time spent in each stage, the throughput and the depth of the queues are in report().
+ * <p>
+ * A stage that throws stops the processing of its thread (later samples are dropped), and is
+ * reported to the ErrorListener.
+ */
+public class ProcessingPipeline {
+
+  public static final String READER_THREAD = "reader";
+
+  private static final String TAG = "ProcessingPipeline";
+  private static final int QUEUE_CAPACITY = 512; // ~0.5 s at 1 kHz
+
+  private final List<Segment> segments = new ArrayList<>();
+  private ErrorListener errorListener;
+  private volatile long mStartNs = 0;
+  private volatile long mStopNs = 0;
+
+
+  public interface ErrorListener {
+    /**
+     * A stage threw, and its thread stopped processing. Called on that thread (the reader, within
+     * submit(), or a worker).
+     */
+    void onStageError(@NonNull String stageName, @NonNull String threadName, @NonNull RuntimeException error);
+  }
+
+
+  /**
+   * Sets who is told of the stage errors, before starting.
+   */
+  @NonNull
+  public ProcessingPipeline setErrorListener(@Nullable ErrorListener listener) {
+    if (mStartNs != 0)
+      throw new IllegalStateException("Pipeline already started");
+    errorListener = listener;
+    return this;
+  }
+
+  /**
+   * Appends a stage, to be run on the given thread: READER_THREAD or the name of a worker.
+   *
+   * @throws IllegalArgumentException if the placement breaks the rules, or the name is taken
+   */
+  @NonNull
+  public ProcessingPipeline addStage(@NonNull ProcessingStage stage, @NonNull String threadName) {
+    if (mStartNs != 0)
+      throw new IllegalStateException("Pipeline already started");
+    List<String> stageThreads = new ArrayList<>();
+    for (Segment segment : segments)
+      for (StageStats stageStats : segment.stages) {
+        if (stageStats.stage.getName().equals(stage.getName()))
+          throw new IllegalArgumentException("Duplicate stage: " + stage.getName());
+        stageThreads.add(segment.threadName);
+      }
+    stageThreads.add(threadName);
+    String error = checkPlacement(stageThreads);
+    if (error != null)
+      throw new IllegalArgumentException("Stage " + stage.getName() + ": " + error);
+
+    Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if (last == null || !last.threadName.equals(threadName)) {
+      last = new Segment(threadName);
+      segments.add(last);
+    }
+    last.stages.add(new StageStats(stage));
+    return this;
+  }
+
+  /**
+   * @param stageThreads the thread of each stage, in pipeline order
+   * @return why the placement is not possible, or null if it is
+   */
+  @Nullable
+  public static String checkPlacement(@NonNull List<String> stageThreads) {
+    Set<String> usedThreads = new HashSet<>();
+    String currentThread = null;
+    for (String thread : stageThreads) {
+      if (thread.equals(currentThread))
+        continue;
+      if (READER_THREAD.equals(thread) && currentThread != null)
+        return "the reader thread can only run the first stages";
+      if (!usedThreads.add(thread))
+        return "the stages of thread '" + thread + "' must be consecutive";
+      currentThread = thread;
+    }
+    return null;
+  }
+
+  public void start() {
+    for (int i = 0; i < segments.size(); i++) {
+      Segment segment = segments.get(i);
+      segment.stageArray = segment.stages.toArray(new StageStats[0]);
+      if (i + 1 < segments.size())
+        segment.output = segments.get(i + 1).input;
+    }
+    mStartNs = System.nanoTime();
+    for (Segment segment : segments)
+      if (segment.input != null)
+        segment.startWorker();
+  }
+
+  /**
+   * Reader thread: runs the reader stages on the sample, and queues it for the workers (a copy).
+   */
+  public void submit(@NonNull ImuSample sample) {
+    if (segments.isEmpty())
+      return;
+    sample.skipped = false;
+    Segment first = segments.get(0);
+    if (first.input != null)
+      first.input.offer(sample);
+    else if (!first.mFailed) {
+      try {
+        first.process(sample);
+      } catch (RuntimeException e) {
+        first.fail(e);
+      }
+    }
+  }
+
+  /**
+   * Lets the workers process what is queued, then stops them - in order, so no sample is lost -
+   * waiting for each to end. Call from the thread of submit(), when done submitting.
+   *
+   * @return false if interrupted before all the workers ended: stages may still be running
+   */
+  public boolean stop() {
+    boolean stopped = true;
+    for (Segment segment : segments)
+      if (segment.worker != null)
+        stopped &= segment.stopWorker();
+    mStopNs = System.nanoTime();
+    return stopped;
+  }
+
+  @NonNull
+  @SuppressLint("DefaultLocale")
+  public String report() {
+    long startNs = mStartNs;
+    if (startNs == 0)
+      return "Processing pipeline: not started\n";
+    long stopNs = mStopNs;
+    long elapsedNs = (stopNs != 0 ? stopNs : System.nanoTime()) - startNs;
+    double elapsedS = elapsedNs / 1e9;
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Processing pipeline, %.1f s:\n", elapsedS));
+    for (Segment segment : segments) {
+      StageQueue queue = segment.input;
+      if (queue != null)
+        sb.append(String.format(" - queue to %s: depth %d (max %d) of %d, dropped %d\n",
+            segment.threadName, queue.getDepth(), queue.getMaxDepth(), queue.getCapacity(), queue.getDropped()));
+      long busyNs = 0;
+      for (StageStats stageStats : segment.stages)
+        busyNs += stageStats.mTotalNs;
+      sb.append(String.format(" - thread %s: %.2f%% busy%s\n", segment.threadName, 100.0 * busyNs / elapsedNs, segment.mFailed ? " - STOPPED by an error" : ""));
+      for (StageStats stageStats : segment.stages) {
+        long processed = stageStats.mProcessed;
+        sb.append(String.format("   - %s: %d samples (%.0f/s), %.2f us avg, %d dropped, %d skipped\n", stageStats.stage.getName(),
+            processed, processed / elapsedS, processed > 0 ? stageStats.mTotalNs / 1e3 / processed : 0.0, stageStats.mDropped, stageStats.mSkipped));
+      }
+    }
+    return sb.toString();
+  }
+
+
+  private static final class StageStats {
+    final ProcessingStage stage;
+    // written by the thread of the stage
+    volatile long mProcessed = 0;
+    volatile long mDropped = 0;
+    volatile long mSkipped = 0;
+    volatile long mTotalNs = 0;
+
+    StageStats(ProcessingStage processingStage) {
+      stage = processingStage;
+    }
+  }
+
+  private final class Segment {
+    final String threadName;
+    final List<StageStats> stages = new ArrayList<>();
+    final StageQueue input; // null for the reader
+    StageStats[] stageArray;
+    StageQueue output;
+    Thread worker;
+    volatile boolean mRunning = false;
+    volatile boolean mFailed = false;
+    StageStats mCurrentStage; // of the thread of the segment
+
+    Segment(String name) {
+      threadName = name;
+      input = READER_THREAD.equals(name) ? null : new StageQueue(QUEUE_CAPACITY);
+    }
+
+    /**
+     * @return true if the sample made it through the stages (and into the next queue)
+     */
+    boolean process(ImuSample sample) {
+      for (StageStats stageStats : stageArray) {
+        mCurrentStage = stageStats;
+        long startNs = System.nanoTime();
+        boolean keep = stageStats.stage.process(sample);
+        stageStats.mTotalNs += System.nanoTime() - startNs;
+        stageStats.mProcessed++;
+        if (!keep) {
+          if (sample.skipped)
+            stageStats.mSkipped++;
+          else
+            stageStats.mDropped++;
+          return false;
+        }
+      }
+      return output == null || output.offer(sample);
+    }
+
+    void startWorker() {
+      mRunning = true;
+      worker = new Thread(this::runWorker, "NrealStage-" + threadName);
+      input.setConsumer(worker);
+      worker.start();
+    }
+
+    boolean stopWorker() {
+      mRunning = false;
+      input.wakeUp();
+      try {
+        worker.join();
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        DriverLog.e(TAG, "Interrupted while stopping " + threadName);
+        return false;
+      }
+    }
+
+    private void runWorker() {
+      try {
+        while (true) {
+          // stopped only after the producer: an empty queue read after that is final
+          boolean running = mRunning;
+          ImuSample sample = input.peek();
+          if (sample == null) {
+            if (!running)
+              break;
+            input.awaitSample();
+            continue;
+          }
+          process(sample);
+          input.release();
+        }
+      } catch (RuntimeException e) {
+        // the queue will fill up and drop samples: visible in the report
+        fail(e);
+      }
+    }
+
+    void fail(RuntimeException e) {
+      mFailed = true;
+      String stageName = mCurrentStage != null ? mCurrentStage.stage.getName() : "?";
+      DriverLog.e(TAG, "Error in stage " + stageName + ", " + threadName + " stopped", e);
+      ErrorListener listener = errorListener;
+      if (listener != null)
+        listener.onStageError(stageName, threadName, e);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package com.enricoros.nreal.driver.pipeline;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A step of a {@link ProcessingPipeline}, called once per sample, in order, always on the same
+ * thread (the reader or a worker, as placed with {@link ProcessingPipeline#addStage}).
+ */
+public interface ProcessingStage {
+
+  /**
+   * Unique within the pipeline: used for the placement and in the statistics.
+   */
+  @NonNull
+  String getName();
+
+  /**
+   * @return false to drop the sample (the following stages will not see it); set
+   * {@link ImuSample#skipped} before, if that is intended rather than a loss
+   */
+  boolean process(@NonNull ImuSample sample);
+}
@@ -0,0 +1,104 @@
+package com.enricoros.nreal.driver.pipeline;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer single-consumer queue of preallocated samples: offer() copies into a
+ * free slot (no allocation), the consumer processes the head slot in place and then releases it.
+ * When full, new samples are dropped and counted - the reader never blocks on a slow worker.
+ */
+final class StageQueue {
+
+  private static final long IDLE_PARK_NS = 10_000_000L;
+
+  private final ImuSample[] slots;
+  private final int mask;
+
+  private volatile long mHead = 0; // next to consume, written by the consumer
+  private volatile long mTail = 0; // next to fill, written by the producer
+  private volatile Thread mConsumer;
+
+  // statistics, written by the producer
+  private volatile long mMaxDepth = 0;
+  private volatile long mDropped = 0;
+
+  /**
+   * @param capacity rounded up to a power of two
+   */
+  StageQueue(int capacity) {
+    int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    slots = new ImuSample[size];
+    for (int i = 0; i < size; i++)
+      slots[i] = new ImuSample();
+    mask = size - 1;
+  }
+
+  void setConsumer(Thread consumer) {
+    mConsumer = consumer;
+  }
+
+  // producer
+
+  boolean offer(@NonNull ImuSample sample) {
+    long tail = mTail;
+    long depth = tail - mHead;
+    if (depth >= slots.length) {
+      mDropped++;
+      return false;
+    }
+    slots[(int) tail & mask].copyFrom(sample);
+    mTail = tail + 1;
+    if (depth + 1 > mMaxDepth)
+      mMaxDepth = depth + 1;
+    // wake up the consumer if it may have found the queue empty
+    Thread consumer = mConsumer;
+    if (depth == 0 && consumer != null)
+      LockSupport.unpark(consumer);
+    return true;
+  }
+
+  // consumer
+
+  /**
+   * @return the oldest sample (to be released after processing), or null if empty
+   */
+  ImuSample peek() {
+    long head = mHead;
+    return head == mTail ? null : slots[(int) head & mask];
+  }
+
+  void release() {
+    mHead = mHead + 1;
+  }
+
+  void awaitSample() {
+    if (mHead == mTail)
+      LockSupport.parkNanos(this, IDLE_PARK_NS);
+  }
+
+  void wakeUp() {
+    Thread consumer = mConsumer;
+    if (consumer != null)
+      LockSupport.unpark(consumer);
+  }
+
+  // any thread
+
+  int getCapacity() {
+    return slots.length;
+  }
+
+  long getDepth() {
+    return mTail - mHead;
+  }
+
+  long getMaxDepth() {
+    return mMaxDepth;
+  }
+
+  long getDropped() {
+    return mDropped;
+  }
+}
@@ -0,0 +1,84 @@
+package com.enricoros.nreal.driver.report;
+
+// GENERATED by ReportSourceGenerator from NrealReports - do not edit, run: ./gradlew :app:generateReportDecoders
+public final class ImuReport {
+
+  public static final int SIZE = 64;
+
+  /**
+   * Required constant bytes (all must match).
+   */
+  public static boolean isValid(byte[] d) {
+    return ((d[0] ^ 0x01) | (d[1] ^ 0x02) | (d[12] ^ (byte) 0xA0) | (d[13] ^ 0x0F) | (d[27] ^ 0x20) | d[42]) == 0;
+  }
+
+  /**
+   * Expected constant bytes (a mismatch is only worth a warning).
+   */
+  public static boolean isAsExpected(byte[] d) {
+    return (d[58] | d[59] | d[60] | d[61] | (d[62] & 0xFE) | d[63]) == 0;
+  }
+
+  // u16 LE @ 2
+  public static int counter1(byte[] d) {
+    return (d[2] & 0xFF) | ((d[3] & 0xFF) << 8);
+  }
+
+  // u64 LE @ 4
+  public static long uptimeNs(byte[] d) {
+    return ((long) d[4] & 0xFF) | (((long) d[5] & 0xFF) << 8) | (((long) d[6] & 0xFF) << 16) | (((long) d[7] & 0xFF) << 24) | (((long) d[8] & 0xFF) << 32) | (((long) d[9] & 0xFF) << 40) | (((long) d[10] & 0xFF) << 48) | (((long) d[11] & 0xFF) << 56);
+  }
+
+  // s24 LE @ 18
+  public static int angVelX(byte[] d) {
+    return (d[18] & 0xFF) | ((d[19] & 0xFF) << 8) | (d[20] << 16);
+  }
+
+  // s24 LE @ 21
+  public static int angVelY(byte[] d) {
+    return (d[21] & 0xFF) | ((d[22] & 0xFF) << 8) | (d[23] << 16);
+  }
+
+  // s24 LE @ 24
+  public static int angVelZ(byte[] d) {
+    return (d[24] & 0xFF) | ((d[25] & 0xFF) << 8) | (d[26] << 16);
+  }
+
+  // s24 LE @ 33
+  public static int accelX(byte[] d) {
+    return (d[33] & 0xFF) | ((d[34] & 0xFF) << 8) | (d[35] << 16);
+  }
+
+  // s24 LE @ 36
+  public static int accelY(byte[] d) {
+    return (d[36] & 0xFF) | ((d[37] & 0xFF) << 8) | (d[38] << 16);
+  }
+
+  // s24 LE @ 39
+  public static int accelZ(byte[] d) {
+    return (d[39] & 0xFF) | ((d[40] & 0xFF) << 8) | (d[41] << 16);
+  }
+
+  // u16 LE @ 48
+  public static int magX(byte[] d) {
+    return (d[48] & 0xFF) | ((d[49] & 0xFF) << 8);
+  }
+
+  // u16 LE @ 50
+  public static int magY(byte[] d) {
+    return (d[50] & 0xFF) | ((d[51] & 0xFF) << 8);
+  }
+
+  // u16 LE @ 52
+  public static int magZ(byte[] d) {
+    return (d[52] & 0xFF) | ((d[53] & 0xFF) << 8);
+  }
+
+  // u32 LE @ 54
+  public static long counter2(byte[] d) {
+    return ((d[54] & 0xFF) | ((d[55] & 0xFF) << 8) | ((d[56] & 0xFF) << 16) | (d[57] << 24)) & 0xFFFFFFFFL;
+  }
+
+  private ImuReport() {
+  }
+}
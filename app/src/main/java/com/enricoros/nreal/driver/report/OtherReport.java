@@ -0,0 +1,34 @@
+package com.enricoros.nreal.driver.report;
+
+// GENERATED by ReportSourceGenerator from NrealReports - do not edit, run: ./gradlew :app:generateReportDecoders
+public final class OtherReport {
+
+  public static final int SIZE = 64;
+
+  /**
+   * Required constant bytes (all must match).
+   */
+  public static boolean isValid(byte[] d) {
+    return true;
+  }
+
+  /**
+   * Expected constant bytes (a mismatch is only worth a warning).
+   */
+  public static boolean isAsExpected(byte[] d) {
+    return true;
+  }
+
+  // s8 @ 22
+  public static int buttonIndex(byte[] d) {
+    return d[22];
+  }
+
+  // s8 @ 30
+  public static int buttonValue(byte[] d) {
+    return d[30];
+  }
+
+  private OtherReport() {
+  }
+}
@@ -0,0 +1,48 @@
+package com.enricoros.nreal.driver.report;
+
+/**
+ * Layout of the reports sent by the Nreal Air, as far as we understand them.
+ * Edit here on firmware changes, then regenerate the decoders with: ./gradlew :app:generateReportDecoders
+ */
+public final class NrealReports {
+
+  /**
+   * IMU report, ~1000 per second on the IMU interface (3).
+   * Unknown bytes: [14 ... 17] = 00 00 00 01, [28 ... 32] = 00 00 00 00 01, [43 ... 47] = 80 00 04 00 00
+   */
+  public static final ReportSchema IMU = new ReportSchema("Imu", 64)
+      .required(0, 0x01)
+      .required(1, 0x02)
+      .field("counter1", 2, 2, false, true) // seems like some sort of delta / resource usage, averaging ~500
+      .field("uptimeNs", 4, 8, false, true)
+      .required(12, 0xA0)
+      .required(13, 0x0F)
+      .field("angVelX", 18, 3, true, true)
+      .field("angVelY", 21, 3, true, true)
+      .field("angVelZ", 24, 3, true, true)
+      .required(27, 0x20)
+      .field("accelX", 33, 3, true, true)
+      .field("accelY", 36, 3, true, true)
+      .field("accelZ", 39, 3, true, true)
+      .required(42, 0x00)
+      .field("magX", 48, 2, false, true)
+      .field("magY", 50, 2, false, true)
+      .field("magZ", 52, 2, false, true)
+      .field("counter2", 54, 4, false, true)
+      .expected(58, 0x00, 0xFF)
+      .expected(59, 0x00, 0xFF)
+      .expected(60, 0x00, 0xFF)
+      .expected(61, 0x00, 0xFF)
+      .expected(62, 0x00, 0xFE) // 00 or 01
+      .expected(63, 0x00, 0xFF);
+
+  /**
+   * Other report, on the 'other' interface (4): button presses.
+   */
+  public static final ReportSchema OTHER = new ReportSchema("Other", 64)
+      .field("buttonIndex", 22, 1, true, true)
+      .field("buttonValue", 30, 1, true, true);
+
+  private NrealReports() {
+  }
+}
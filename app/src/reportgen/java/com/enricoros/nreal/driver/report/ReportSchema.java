@@ -0,0 +1,93 @@
+package com.enricoros.nreal.driver.report;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Declarative layout of a fixed-size HID report: the fields (offset, width, signedness, endianness)
+ * and the constant bytes that identify a valid report.
+ * <p>
+ * Decoders are generated from the schemas at build time (see {@link ReportSourceGenerator}), so that
+ * they read at constant offsets exactly like hand-written code. Kept free of Android dependencies,
+ * as it is compiled and run by the build.
+ *
+ * @noinspection UnusedReturnValue
+ */
+public class ReportSchema {
+
+  static final class Field {
+    final String name;
+    final int offset, width;
+    final boolean signed, littleEndian;
+
+    Field(String name, int offset, int width, boolean signed, boolean littleEndian) {
+      this.name = name;
+      this.offset = offset;
+      this.width = width;
+      this.signed = signed;
+      this.littleEndian = littleEndian;
+    }
+  }
+
+  static final class Constant {
+    final int offset, value, mask;
+    final boolean required;
+
+    Constant(int offset, int value, int mask, boolean required) {
+      this.offset = offset;
+      this.value = value;
+      this.mask = mask;
+      this.required = required;
+    }
+  }
+
+  final String name;
+  final int size;
+  final List<Field> fields = new ArrayList<>();
+  final List<Constant> constants = new ArrayList<>();
+
+  /**
+   * @param name used for the generated decoder class: name + "Report"
+   */
+  public ReportSchema(String name, int size) {
+    this.name = name;
+    this.size = size;
+  }
+
+  /**
+   * Integer field of 1, 2, 3, 4 or 8 bytes.
+   */
+  public ReportSchema field(String name, int offset, int width, boolean signed, boolean littleEndian) {
+    if (width < 1 || width > 4 && width != 8)
+      throw new IllegalArgumentException(this.name + ": unsupported width " + width + " for field " + name);
+    checkRange(offset, width);
+    for (Field f : fields)
+      if (f.name.equals(name))
+        throw new IllegalArgumentException(this.name + ": duplicate field " + name);
+    fields.add(new Field(name, offset, width, signed, littleEndian));
+    return this;
+  }
+
+  /**
+   * Byte that must match for the report to be valid, e.g. a header.
+   */
+  public ReportSchema required(int offset, int value) {
+    checkRange(offset, 1);
+    constants.add(new Constant(offset, value, 0xFF, true));
+    return this;
+  }
+
+  /**
+   * Byte that is expected to match (under the mask), but only worth a warning if it does not.
+   */
+  public ReportSchema expected(int offset, int value, int mask) {
+    checkRange(offset, 1);
+    constants.add(new Constant(offset, value, mask, false));
+    return this;
+  }
+
+  private void checkRange(int offset, int width) {
+    if (offset < 0 || offset + width > size)
+      throw new IllegalArgumentException(name + ": field at " + offset + " (+" + width + ") is outside of the report (" + size + ")");
+  }
+}
@@ -0,0 +1,128 @@
+package com.enricoros.nreal.driver.report;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Generates the Java decoders of the {@link NrealReports} schemas: one final class per report, with
+ * a static method per field and for the constant checks. Offsets are literals and sign extension is
+ * done with shifts, so the JIT sees the same code as the original hand-written decoding.
+ * <p>
+ * Run by the build, outside of the app sources: ./gradlew :app:generateReportDecoders writes the
+ * decoders into the report package of the app, and every build checks that the committed ones are
+ * up to date (--check, fails on a difference).
+ */
+public final class ReportSourceGenerator {
+
+  static final ReportSchema[] SCHEMAS = {NrealReports.IMU, NrealReports.OTHER};
+
+  public static void main(String[] args) throws IOException {
+    boolean check = args.length == 2 && args[0].equals("--check");
+    if (args.length != (check ? 2 : 1))
+      throw new IllegalArgumentException("Usage: ReportSourceGenerator [--check] <directory of the report package>");
+    File outputDir = new File(args[check ? 1 : 0]);
+    for (ReportSchema schema : SCHEMAS) {
+      if (check)
+        check(schema, outputDir);
+      else
+        write(schema, outputDir);
+    }
+  }
+
+  private static void write(ReportSchema schema, File outputDir) throws IOException {
+    String className = schema.name + "Report";
+    File file = new File(outputDir, className + ".java");
+    try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      out.write(generate(schema, className));
+    }
+    System.out.println("Generated " + file);
+  }
+
+  private static void check(ReportSchema schema, File outputDir) throws IOException {
+    String className = schema.name + "Report";
+    File file = new File(outputDir, className + ".java");
+    String committed = file.exists() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : null;
+    if (!generate(schema, className).equals(committed))
+      throw new IllegalStateException(file + " does not match the schema in NrealReports, run: ./gradlew :app:generateReportDecoders");
+  }
+
+  static String generate(ReportSchema schema, String className) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("package ").append(ReportSourceGenerator.class.getPackage().getName()).append(";\n\n");
+    sb.append("// GENERATED by ReportSourceGenerator from NrealReports - do not edit, run: ./gradlew :app:generateReportDecoders\n");
+    sb.append("public final class ").append(className).append(" {\n\n");
+    sb.append("  public static final int SIZE = ").append(schema.size).append(";\n\n");
+
+    sb.append("  /**\n   * Required constant bytes (all must match).\n   */\n");
+    sb.append("  public static boolean isValid(byte[] d) {\n");
+    sb.append("    return ").append(constantsExpression(schema, true)).append(";\n  }\n\n");
+    sb.append("  /**\n   * Expected constant bytes (a mismatch is only worth a warning).\n   */\n");
+    sb.append("  public static boolean isAsExpected(byte[] d) {\n");
+    sb.append("    return ").append(constantsExpression(schema, false)).append(";\n  }\n");
+
+    for (ReportSchema.Field f : schema.fields) {
+      boolean returnsLong = f.width == 8 || (f.width == 4 && !f.signed);
+      sb.append("\n  // ").append(f.signed ? "s" : "u").append(f.width * 8).append(f.width > 1 ? (f.littleEndian ? " LE" : " BE") : "")
+          .append(" @ ").append(f.offset).append("\n");
+      sb.append("  public static ").append(returnsLong ? "long " : "int ").append(f.name).append("(byte[] d) {\n");
+      sb.append("    return ").append(fieldExpression(f)).append(";\n  }\n");
+    }
+
+    sb.append("\n  private ").append(className).append("() {\n  }\n}\n");
+    return sb.toString();
+  }
+
+  // branch-free: OR of the (masked) differences
+  private static String constantsExpression(ReportSchema schema, boolean required) {
+    StringBuilder sb = new StringBuilder();
+    for (ReportSchema.Constant c : schema.constants) {
+      if (c.required != required)
+        continue;
+      String term = (c.value & c.mask) == 0 ? "d[" + c.offset + "]" : "(d[" + c.offset + "] ^ " + byteLiteral(c.value & c.mask) + ")";
+      if ((c.mask & 0xFF) != 0xFF)
+        term = "(" + term + " & " + hex(c.mask) + ")";
+      sb.append(sb.length() == 0 ? "" : " | ").append(term);
+    }
+    return sb.length() == 0 ? "true" : "(" + sb + ") == 0";
+  }
+
+  private static String fieldExpression(ReportSchema.Field f) {
+    if (f.width == 1)
+      return f.signed ? "d[" + f.offset + "]" : "d[" + f.offset + "] & 0xFF";
+
+    StringBuilder sb = new StringBuilder();
+    for (int k = 0; k < f.width; k++) {
+      int index = f.littleEndian ? f.offset + k : f.offset + f.width - 1 - k;
+      boolean top = k == f.width - 1;
+      String term;
+      if (f.width == 8)
+        term = "((long) d[" + index + "] & 0xFF)";
+      else if (top && (f.signed || f.width == 4))
+        term = "d[" + index + "]"; // the top byte carries the sign
+      else
+        term = "(d[" + index + "] & 0xFF)";
+      if (k > 0)
+        term = "(" + term + " << " + (k * 8) + ")";
+      sb.append(k == 0 ? "" : " | ").append(term);
+    }
+    if (f.width == 4 && !f.signed)
+      return "(" + sb + ") & 0xFFFFFFFFL";
+    return sb.toString();
+  }
+
+  private static String byteLiteral(int value) {
+    return value >= 0x80 ? "(byte) " + hex(value) : hex(value);
+  }
+
+  private static String hex(int value) {
+    return String.format("0x%02X", value);
+  }
+
+  private ReportSourceGenerator() {
+  }
+}
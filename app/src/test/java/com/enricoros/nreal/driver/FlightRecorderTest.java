@@ -0,0 +1,55 @@
+package com.enricoros.nreal.driver;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class FlightRecorderTest {
+
+  private static final int CAPACITY = 8;
+
+
+  @Test
+  public void parsesWhatItSerializes() {
+    FlightRecorder recorder = new FlightRecorder(CAPACITY);
+    byte[] report = new byte[64];
+    for (int n = 0; n < CAPACITY + 3; n++) {
+      Arrays.fill(report, (byte) n);
+      recorder.record(n % 2 == 0 ? FlightRecorder.KIND_IMU : FlightRecorder.KIND_OTHER, report, n == 5 ? -1 : 64, n * 1_000_000L, n * 2000L);
+    }
+    FlightRecorder.Dump dump = FlightRecorder.parse(recorder.serialize("Test, \u00e8"));
+    assertEquals("Test, \u00e8", dump.reason);
+    assertEquals(CAPACITY, dump.count);
+    // the oldest entries were overwritten
+    for (int i = 0; i < CAPACITY; i++) {
+      int n = i + 3;
+      assertEquals(n * 1_000_000L, dump.getHostNs(i));
+      assertEquals(n * 2, dump.getWaitUs(i));
+      assertEquals(n == 5 ? -1 : 64, dump.getResult(i));
+      assertEquals(n % 2 == 0 ? FlightRecorder.KIND_IMU : FlightRecorder.KIND_OTHER, dump.getKind(i));
+      dump.getReport(i, report);
+      byte[] expected = new byte[64];
+      Arrays.fill(expected, (byte) n);
+      assertArrayEquals(expected, report);
+    }
+  }
+
+  @Test
+  public void rejectsOtherData() {
+    byte[] serialized = new FlightRecorder(CAPACITY).serialize("");
+    serialized[0] = 0;
+    assertThrows(IllegalArgumentException.class, () -> FlightRecorder.parse(serialized));
+  }
+
+  @Test
+  public void rejectsTruncatedDumps() {
+    FlightRecorder recorder = new FlightRecorder(CAPACITY);
+    recorder.record(FlightRecorder.KIND_IMU, new byte[64], 64, 1, 1);
+    byte[] serialized = recorder.serialize("");
+    assertThrows(IllegalArgumentException.class, () -> FlightRecorder.parse(Arrays.copyOf(serialized, serialized.length - 1)));
+  }
+}
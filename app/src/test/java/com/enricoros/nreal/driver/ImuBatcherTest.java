@@ -0,0 +1,82 @@
+package com.enricoros.nreal.driver;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+@RunWith(RobolectricTestRunner.class)
+public class ImuBatcherTest {
+
+  private static final int MAX_LATENCY_MS = 50;
+
+  // uptimes of the samples of each delivered batch
+  private final List<List<Long>> delivered = new ArrayList<>();
+  private final ImuBatcher batcher = new ImuBatcher(new Handler(Looper.getMainLooper()), batch -> {
+    List<Long> uptimes = new ArrayList<>();
+    for (int i = 0; i < batch.getCount(); i++)
+      uptimes.add(batch.getUptimeNs(i));
+    delivered.add(uptimes);
+  }, MAX_LATENCY_MS);
+
+
+  @Test
+  public void flushDuringDispatchIsDeliveredAfterIt() {
+    addSamples(1, 3);
+    batcher.flush();
+    addSamples(4, 2);
+    batcher.flush(); // the first batch is still in flight
+    ShadowLooper.idleMainLooper();
+    assertEquals(2, delivered.size());
+    assertEquals(3, delivered.get(0).size());
+    assertEquals(2, delivered.get(1).size());
+    assertEquals(5_000_000L, (long) delivered.get(1).get(1));
+  }
+
+  @Test
+  public void stalledStreamIsDeliveredAtTheDeadline() {
+    addSamples(1, 2);
+    ShadowLooper.idleMainLooper(MAX_LATENCY_MS - 1, TimeUnit.MILLISECONDS);
+    assertEquals(0, delivered.size());
+    ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+    assertEquals(1, delivered.size());
+    assertEquals(2, delivered.get(0).size());
+  }
+
+  @Test
+  public void deadlineOnTheDeviceClock() {
+    addSamples(1, MAX_LATENCY_MS + 1);
+    ShadowLooper.idleMainLooper();
+    assertEquals(1, delivered.size());
+    assertEquals(MAX_LATENCY_MS + 1, delivered.get(0).size());
+    // the host deadline of the dispatched batch is cancelled
+    ShadowLooper.idleMainLooper(MAX_LATENCY_MS, TimeUnit.MILLISECONDS);
+    assertEquals(1, delivered.size());
+  }
+
+  @Test
+  public void rejectsNonPositiveLatency() {
+    assertThrows(IllegalArgumentException.class, () -> new ImuBatcher(new Handler(Looper.getMainLooper()), batch -> {
+    }, 0));
+  }
+
+
+  // one sample per ms, from the given uptime in ms
+  private void addSamples(long firstMs, int count) {
+    ImuDataRaw data = new ImuDataRaw();
+    for (int i = 0; i < count; i++) {
+      data.update(1, 2, 3, 4, 5, 6, 7, 8, 9, (firstMs + i) * 1_000_000L);
+      batcher.add(data);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package com.enricoros.nreal.driver;
+
+import com.enricoros.nreal.driver.pipeline.ImuSample;
+import com.enricoros.nreal.driver.report.ImuReport;
+import com.enricoros.nreal.driver.sim.MotionTrajectory;
+import com.enricoros.nreal.driver.sim.SyntheticImuGenerator;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The episodes of the {@link ImuEventDetector} at the edges of the stream: a shock on the sample
+ * that primes the timing after a gap (Decode then Detect, as in the pipeline), and a condition held
+ * for longer than an episode; and the samples before a free fall, which is only confirmed later.
+ */
+public class ImuEventDetectorTest {
+
+  private static final int RATE_HZ = 1000;
+  private static final long PERIOD_NS = 1_000_000L;
+  private static final int FULL_SCALE_COUNTS = (1 << 23) - 1;
+  private static final int ONE_G_COUNTS = 1 << 19; // +/-16 g on 24 bits
+  private static final int PRE_SAMPLES = 8;
+
+  private final List<ImuEvent> events = new ArrayList<>();
+
+
+  @Test
+  public void impactAtReconnectIsDetected() {
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.impact(0.5, 0.005, 25, 2500), RATE_HZ, 39);
+    byte[][] reports = new byte[RATE_HZ][SyntheticImuGenerator.REPORT_SIZE];
+    int lastShock = 0;
+    for (int i = 0; i < reports.length; i++) {
+      generator.next(reports[i]);
+      if (Math.abs(ImuReport.accelX(reports[i])) > 8 * ONE_G_COUNTS)
+        lastShock = i;
+    }
+    assertTrue("No shock", lastShock > 0);
+
+    // the connection is lost before the shock, and back on its last sample
+    ImuStages.Decode decode = new ImuStages.Decode();
+    ImuStages.Detect detect = new ImuStages.Detect(new ImuEventDetector(events::add));
+    ImuSample sample = new ImuSample();
+    for (int i = 0; i < reports.length; i++) {
+      if (i >= RATE_HZ / 4 && i < lastShock)
+        continue;
+      System.arraycopy(reports[i], 0, sample.report, 0, ImuSample.REPORT_SIZE);
+      sample.afterGap = i == 0 || i == lastShock;
+      sample.skipped = false;
+      assertTrue(decode.process(sample));
+      boolean kept = detect.process(sample);
+      if (i == lastShock) {
+        assertFalse("Priming sample kept", kept);
+        assertTrue("Priming sample not skipped", sample.skipped);
+        assertTrue("Shock not flagged", (sample.eventFlags & ImuEvent.IMPACT) != 0);
+      }
+    }
+    assertEquals("Events: " + events, 1, events.size());
+    ImuEvent event = events.get(0);
+    assertTrue(event.is(ImuEvent.IMPACT));
+    assertEquals("Trigger", ImuReport.uptimeNs(reports[lastShock]), event.uptimesNs[event.triggerIndex]);
+    assertEquals("Samples before the trigger (none, after the gap)", 0, event.triggerIndex);
+  }
+
+  @Test
+  public void freeFallKeepsTheSamplesBeforeIt() {
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.freeFall(0.5, 0.2), RATE_HZ, 39);
+    ImuEventDetector detector = new ImuEventDetector(events::add);
+    byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+    long onsetNs = 0;
+    for (int i = 0; i < RATE_HZ; i++) {
+      generator.next(report);
+      int[] accel = {ImuReport.accelX(report), ImuReport.accelY(report), ImuReport.accelZ(report)};
+      if (onsetNs == 0 && magnitudeG((double) accel[0] / ONE_G_COUNTS, (double) accel[1] / ONE_G_COUNTS, (double) accel[2] / ONE_G_COUNTS) < ImuEventDetector.FREE_FALL_G)
+        onsetNs = ImuReport.uptimeNs(report);
+      detector.process(ImuReport.uptimeNs(report), accel, new int[]{ImuReport.angVelX(report), ImuReport.angVelY(report), ImuReport.angVelZ(report)});
+    }
+
+    assertEquals("Events: " + events, 1, events.size());
+    ImuEvent event = events.get(0);
+    assertTrue(event.is(ImuEvent.FREE_FALL));
+    assertEquals("Start", onsetNs, event.startUptimeNs);
+    assertEquals("Trigger at the onset", onsetNs, event.uptimesNs[event.triggerIndex]);
+    assertEquals("Samples before the onset", PRE_SAMPLES, event.triggerIndex);
+    float[] first = event.accelG[0];
+    assertTrue("First sample in the fall: " + Arrays.toString(first), magnitudeG(first[0], first[1], first[2]) >= 1);
+  }
+
+  @Test
+  public void heldSaturationIsReportedInParts() {
+    ImuEventDetector detector = new ImuEventDetector(events::add);
+    int[] stuck = {FULL_SCALE_COUNTS, 0, 0};
+    int[] still = {0, 0, ONE_G_COUNTS};
+    int[] angVel = new int[3];
+    int stuckSamples = 2500;
+    for (int i = 1; i <= stuckSamples + 100; i++)
+      detector.process(i * PERIOD_NS, i <= stuckSamples ? stuck : still, angVel);
+
+    assertEquals("Events: " + events, 3, events.size());
+    long endNs = 0;
+    for (int e = 0; e < events.size(); e++) {
+      ImuEvent part = events.get(e);
+      assertTrue(part.is(ImuEvent.ACCEL_SATURATION));
+      assertEquals("Continued " + part, e > 0, part.continued);
+      // contiguous: each part starts on the sample after the previous one
+      assertEquals("Start of " + part, endNs + PERIOD_NS, part.startUptimeNs);
+      endNs = part.startUptimeNs + part.durationNs;
+    }
+    assertEquals("End", stuckSamples * PERIOD_NS, endNs);
+  }
+
+
+  private static double magnitudeG(double x, double y, double z) {
+    return Math.sqrt(x * x + y * y + z * z);
+  }
+}
@@ -0,0 +1,180 @@
+package com.enricoros.nreal.driver;
+
+import androidx.annotation.NonNull;
+
+import com.enricoros.nreal.driver.pipeline.ImuSample;
+import com.enricoros.nreal.driver.pipeline.ProcessingStage;
+import com.enricoros.nreal.driver.sim.FaultInjectingTransport;
+import com.enricoros.nreal.driver.sim.MotionTrajectory;
+import com.enricoros.nreal.driver.sim.SimulatedNrealDevice;
+import com.enricoros.nreal.driver.sim.SyntheticImuGenerator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The gaps told by the uptime of the reports, the read timeout at the report rate, and the
+ * escalation of the recovery of the reader: each fault of the {@link FaultInjectingTransport} must
+ * be recovered at its own level, and since the paced device loses no reports meanwhile, without a
+ * gap.
+ */
+public class StallWatchdogTest {
+
+  private static final long PERIOD_NS = 1_000_000L;
+  private static final long TIMEOUT_MS = 3000;
+
+  private final StallWatchdog watchdog = new StallWatchdog();
+  private FaultInjectingTransport transport;
+  private NrealDeviceThread thread;
+  private volatile String connectionError;
+  private volatile long samples;
+  private volatile long gaps;
+
+
+  @After
+  public void tearDown() {
+    if (thread != null) {
+      thread.quit();
+      transport.close();
+    }
+  }
+
+  @Test
+  public void lateReportIsNotAGap() {
+    assertTrue("First report", watchdog.onSample(PERIOD_NS));
+    for (int i = 2; i <= 100; i++)
+      assertFalse(watchdog.onSample(i * PERIOD_NS));
+    // the read timed out, and the retry brought the next report
+    watchdog.onStall();
+    assertFalse(watchdog.onSample(101 * PERIOD_NS));
+    // one lost report is not a gap either (the time delta covers it)
+    assertFalse(watchdog.onSample(103 * PERIOD_NS));
+  }
+
+  @Test
+  public void lostReportsAreAGap() {
+    for (int i = 1; i <= 100; i++)
+      watchdog.onSample(i * PERIOD_NS);
+    assertTrue("Lost reports", watchdog.onSample(110 * PERIOD_NS));
+    assertFalse(watchdog.onSample(111 * PERIOD_NS));
+    assertTrue("Uptime backwards", watchdog.onSample(50 * PERIOD_NS));
+    watchdog.onStreamStart();
+    assertTrue("New stream", watchdog.onSample(51 * PERIOD_NS));
+  }
+
+  @Test
+  public void readTimeoutIsAFewPeriods() {
+    assertEquals("Period unknown", 200, watchdog.getReadTimeoutMs());
+    for (int i = 1; i <= 1000; i++)
+      watchdog.onSample(i * PERIOD_NS);
+    assertEquals("At 1 kHz", 5, watchdog.getReadTimeoutMs());
+    watchdog.onStreamStart();
+    for (int i = 1; i <= 1000; i++)
+      watchdog.onSample(1_000_000_000L + i * PERIOD_NS / 10);
+    assertEquals("At 10 kHz (floor)", 2, watchdog.getReadTimeoutMs());
+  }
+
+  @Test
+  public void readErrorsAreRetried() throws InterruptedException {
+    assertRecoveredAt(FaultInjectingTransport.FAULT_READ_ERRORS, StallWatchdog.RETRY_READ);
+  }
+
+  @Test
+  public void stoppedStreamIsRestarted() throws InterruptedException {
+    assertRecoveredAt(FaultInjectingTransport.FAULT_STREAM_STOPPED, StallWatchdog.RESTART_IMU);
+  }
+
+  @Test
+  public void lostInterfacesAreReclaimed() throws InterruptedException {
+    assertRecoveredAt(FaultInjectingTransport.FAULT_INTERFACE_LOST, StallWatchdog.RECLAIM_INTERFACES);
+  }
+
+  @Test
+  public void deadDeviceFailsAllLevels() throws InterruptedException {
+    startReader();
+    transport.injectFault(FaultInjectingTransport.FAULT_DEAD);
+    assertTrue("Failure not reported", await(() -> connectionError != null));
+    assertEquals(1, watchdog.getStalls());
+    assertEquals(1, watchdog.getFailures());
+    for (int level = 0; level < StallWatchdog.LEVELS; level++)
+      assertEquals("Recoveries at level " + level, 0, watchdog.getRecoveries(level));
+  }
+
+
+  private void assertRecoveredAt(int fault, int expectedLevel) throws InterruptedException {
+    startReader();
+    transport.injectFault(fault);
+    assertTrue("Not recovered", await(() -> watchdog.getStalls() == 1 && watchdog.getRecoveries(expectedLevel) == 1));
+    long samplesAfterRecovery = samples;
+    assertTrue("No samples after the recovery", await(() -> samples > samplesAfterRecovery + 50));
+    for (int level = 0; level < StallWatchdog.LEVELS; level++)
+      assertEquals("Recoveries at level " + level, level == expectedLevel ? 1 : 0, watchdog.getRecoveries(level));
+    assertEquals(0, watchdog.getFailures());
+    assertEquals("Gaps (the start of the stream only)", 1, gaps);
+    assertNull(connectionError);
+  }
+
+  private void startReader() throws InterruptedException {
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.oscillation(2, 40, 0.5), 1000, 36);
+    transport = new FaultInjectingTransport(new SimulatedNrealDevice(generator, true));
+    thread = new NrealDeviceThread(transport, new NrealDeviceThread.ThreadCallbacks() {
+      @Override
+      public void onConnectionError(String s) {
+        connectionError = s;
+      }
+
+      @Override
+      public void onNewData(ImuDataRaw data) {
+      }
+
+      @Override
+      public void onButtonPressedTemp(int button, int value) {
+      }
+
+      @Override
+      public void onMessage(String message) {
+      }
+
+      @Override
+      public void onImuEvent(ImuEvent event) {
+      }
+
+      @Override
+      public void onEndOfStream() {
+      }
+    }, null, null, null, watchdog);
+    thread.configurePipeline(Collections.emptyMap(), Collections.singletonList(new ProcessingStage() {
+      @NonNull
+      @Override
+      public String getName() {
+        return "GapCounter";
+      }
+
+      @Override
+      public boolean process(@NonNull ImuSample sample) {
+        if (sample.afterGap)
+          gaps++;
+        samples++;
+        return true;
+      }
+    }));
+    thread.start();
+    // the period is learned
+    assertTrue("Not streaming", await(() -> samples > 100));
+  }
+
+  private static boolean await(BooleanSupplier condition) throws InterruptedException {
+    long endNs = System.nanoTime() + TIMEOUT_MS * 1_000_000L;
+    while (!condition.getAsBoolean() && System.nanoTime() < endNs)
+      Thread.sleep(1);
+    return condition.getAsBoolean();
+  }
+}
@@ -0,0 +1,72 @@
+package com.enricoros.nreal.driver.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The octave clusters of the {@link AllanDeviation} against the closed forms: sigma / sqrt(m) for
+ * white noise, and the +1/2 slope of a random walk.
+ */
+public class AllanDeviationTest {
+
+  private static final int SAMPLES = 1 << 20;
+  private static final int MIN_DIFFERENCES = 500;
+
+
+  @Test
+  public void whiteNoiseFallsWithTheSquareRootOfTau() {
+    double sigma = 0.3;
+    Random random = new Random(31);
+    AllanDeviation allan = new AllanDeviation();
+    for (int i = 0; i < SAMPLES; i++)
+      allan.add(sigma * random.nextGaussian());
+
+    int checked = 0;
+    for (int l = 0; l < allan.getLevels() && allan.getDifferenceCount(l) >= MIN_DIFFERENCES; l++, checked++) {
+      // the relative error of the estimate is ~1 / sqrt(2 n)
+      double expected = sigma / Math.sqrt(allan.getClusterSize(l));
+      double tolerance = 4 / Math.sqrt(2.0 * allan.getDifferenceCount(l));
+      assertEquals("Deviation at m=" + allan.getClusterSize(l), expected, allan.getDeviation(l), expected * tolerance);
+    }
+    assertTrue("Levels checked: " + checked, checked >= 10);
+  }
+
+  @Test
+  public void randomWalkRisesWithTheSquareRootOfTau() {
+    double step = 0.01;
+    Random random = new Random(32);
+    AllanDeviation allan = new AllanDeviation();
+    double value = 0;
+    for (int i = 0; i < SAMPLES; i++)
+      allan.add(value += step * random.nextGaussian());
+
+    // least squares slope of log(adev) over log(m), where the +1/2 asymptote holds (m >= 4)
+    double sx = 0, sy = 0, sxx = 0, sxy = 0;
+    int n = 0;
+    for (int l = 2; l < allan.getLevels() && allan.getDifferenceCount(l) >= MIN_DIFFERENCES; l++, n++) {
+      double x = Math.log(allan.getClusterSize(l)), y = Math.log(allan.getDeviation(l));
+      sx += x;
+      sy += y;
+      sxx += x * x;
+      sxy += x * y;
+    }
+    assertTrue("Levels fitted: " + n, n >= 5);
+    double slope = (n * sxy - sx * sy) / (n * sxx - sx * sx);
+    assertEquals("Slope", 0.5, slope, 0.05);
+  }
+
+  @Test
+  public void gapsDoNotFormClusters() {
+    AllanDeviation allan = new AllanDeviation();
+    allan.add(0);
+    allan.markGap();
+    allan.add(1000);
+    assertEquals("Levels", 0, allan.getLevels());
+    allan.add(1000);
+    assertEquals("Deviation of a constant", 0, allan.getDeviation(0), 0);
+  }
+}
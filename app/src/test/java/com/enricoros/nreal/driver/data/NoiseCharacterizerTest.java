@@ -0,0 +1,56 @@
+package com.enricoros.nreal.driver.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The summary figures of the {@link NoiseCharacterizer} on synthetic still recordings: the noise
+ * density of white noise (sigma * sqrt(tau0)), and the rate random walk of a random walk.
+ */
+public class NoiseCharacterizerTest {
+
+  private static final float PERIOD_S = 0.001f;
+
+
+  @Test
+  public void whiteNoiseGivesTheDensityAndNoRandomWalk() {
+    double gyroSigma = 0.2, accelSigma = 0.004;
+    Random random = new Random(33);
+    NoiseCharacterizer characterizer = new NoiseCharacterizer();
+    for (int i = 0; i < 200_000; i++) // 200 s
+      characterizer.add(g(random, gyroSigma), g(random, gyroSigma), g(random, gyroSigma),
+          g(random, accelSigma), g(random, accelSigma), 1 + g(random, accelSigma), PERIOD_S);
+
+    for (int c = 0; c < 6; c++) {
+      double expected = (c < 3 ? gyroSigma : accelSigma) * Math.sqrt(PERIOD_S);
+      // ~200 differences at tau = 1 s: 5% of sampling error
+      assertEquals("Density of channel " + c, expected, characterizer.getNoiseDensity(c), expected * 0.15);
+      assertTrue("Random walk in white noise, channel " + c, Double.isNaN(characterizer.getRateRandomWalk(c)));
+    }
+    assertTrue(characterizer.report(), characterizer.report().contains("200000 samples"));
+  }
+
+  @Test
+  public void randomWalkGivesTheRate() {
+    // a discrete random walk of step s has K = s / sqrt(tau0)
+    double step = 0.001, rateRandomWalk = step / Math.sqrt(PERIOD_S);
+    Random random = new Random(34);
+    NoiseCharacterizer characterizer = new NoiseCharacterizer();
+    float walk = 0;
+    for (int i = 0; i < 1 << 20; i++) {
+      walk += g(random, step);
+      characterizer.add(walk, 0, 0, 0, 0, 1, PERIOD_S);
+    }
+    // at the longest tau there are only 8-16 differences, so the estimate is coarse
+    assertEquals("Rate random walk", rateRandomWalk, characterizer.getRateRandomWalk(0), rateRandomWalk * 0.35);
+  }
+
+
+  private static float g(Random random, double sigma) {
+    return (float) (sigma * random.nextGaussian());
+  }
+}
@@ -0,0 +1,50 @@
+package com.enricoros.nreal.driver.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link RunningStats} against the two-pass mean and variance, on values far from zero where the
+ * naive sum of squares loses its digits.
+ */
+public class RunningStatsTest {
+
+  @Test
+  public void matchesTwoPass() {
+    Random random = new Random(35);
+    double[] values = new double[100_000];
+    RunningStats stats = new RunningStats();
+    for (int i = 0; i < values.length; i++)
+      stats.add(values[i] = 1e9 + 0.5 * random.nextGaussian());
+
+    double mean = 0;
+    for (double value : values)
+      mean += value;
+    mean /= values.length;
+    double variance = 0;
+    for (double value : values)
+      variance += (value - mean) * (value - mean);
+    variance /= values.length - 1;
+
+    assertEquals("Count", values.length, stats.getCount());
+    assertEquals("Mean", mean, stats.getMean(), 1e-6);
+    assertEquals("Variance", variance, stats.getVariance(), variance * 1e-6);
+    assertEquals("Deviation", Math.sqrt(variance), stats.getStdDev(), Math.sqrt(variance) * 1e-6);
+  }
+
+  @Test
+  public void resetStartsOver() {
+    RunningStats stats = new RunningStats();
+    stats.add(5);
+    stats.add(7);
+    stats.reset();
+    assertEquals(0, stats.getVariance(), 0);
+    stats.add(3);
+    assertEquals(1, stats.getCount());
+    assertEquals(3, stats.getMean(), 0);
+    assertEquals("Variance of one value", 0, stats.getVariance(), 0);
+  }
+}
@@ -0,0 +1,133 @@
+package com.enricoros.nreal.driver.pipeline;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessingPipelineTest {
+
+  // longer than the join of the workers used to wait
+  private static final long SLOW_STAGE_MS = 1500;
+
+  private volatile boolean slowStageDone;
+  private volatile String errorStage;
+  private volatile String errorThread;
+  private int processedAfterError;
+
+
+  @Test
+  public void skipsAreNotDrops() {
+    ProcessingPipeline pipeline = new ProcessingPipeline()
+        .addStage(stage("gate", sample -> {
+          // every other sample on purpose, one lost
+          sample.skipped = sample.uptimeNs % 2 == 0;
+          return !sample.skipped && sample.uptimeNs != 5;
+        }), ProcessingPipeline.READER_THREAD);
+    pipeline.start();
+    ImuSample sample = new ImuSample();
+    for (int i = 1; i <= 10; i++) {
+      sample.uptimeNs = i;
+      pipeline.submit(sample);
+    }
+    pipeline.stop();
+    String report = pipeline.report();
+    assertTrue(report, report.contains("gate: 10 samples"));
+    assertTrue(report, report.contains(", 1 dropped, 5 skipped"));
+  }
+
+  @Test
+  public void stopWaitsForTheWorkers() {
+    ProcessingPipeline pipeline = new ProcessingPipeline()
+        .addStage(stage("slow", sample -> {
+          try {
+            Thread.sleep(SLOW_STAGE_MS);
+          } catch (InterruptedException e) {
+            return false;
+          }
+          slowStageDone = true;
+          return true;
+        }), "worker");
+    pipeline.start();
+    pipeline.submit(new ImuSample());
+    assertTrue("Not stopped", pipeline.stop());
+    assertTrue("Stage still running", slowStageDone);
+  }
+
+
+  @Test
+  public void workerStageErrorIsReported() throws InterruptedException {
+    CountDownLatch reported = new CountDownLatch(1);
+    ProcessingPipeline pipeline = new ProcessingPipeline()
+        .setErrorListener((stageName, threadName, error) -> {
+          errorStage = stageName;
+          errorThread = threadName;
+          reported.countDown();
+        })
+        .addStage(stage("pass", sample -> true), ProcessingPipeline.READER_THREAD)
+        .addStage(stage("broken", sample -> {
+          throw new IllegalStateException("broken");
+        }), "worker");
+    pipeline.start();
+    pipeline.submit(new ImuSample());
+    assertTrue("Error not reported", reported.await(1, TimeUnit.SECONDS));
+    assertTrue(pipeline.stop());
+    assertEquals("broken", errorStage);
+    assertEquals("worker", errorThread);
+    assertTrue(pipeline.report(), pipeline.report().contains("thread worker: ") && pipeline.report().contains("STOPPED by an error"));
+  }
+
+  @Test
+  public void readerStageErrorIsReported() {
+    ProcessingPipeline pipeline = new ProcessingPipeline()
+        .setErrorListener((stageName, threadName, error) -> {
+          errorStage = stageName;
+          errorThread = threadName;
+        })
+        .addStage(stage("broken", sample -> {
+          if (sample.uptimeNs == 2)
+            throw new IllegalStateException("broken");
+          return true;
+        }), ProcessingPipeline.READER_THREAD)
+        .addStage(stage("counter", sample -> {
+          if (sample.uptimeNs > 2)
+            processedAfterError++;
+          return true;
+        }), ProcessingPipeline.READER_THREAD);
+    pipeline.start();
+    ImuSample sample = new ImuSample();
+    for (int i = 1; i <= 5; i++) {
+      sample.uptimeNs = i;
+      pipeline.submit(sample); // does not throw
+    }
+    assertTrue(pipeline.stop());
+    assertEquals("broken", errorStage);
+    assertEquals(ProcessingPipeline.READER_THREAD, errorThread);
+    assertEquals("Processed after the error", 0, processedAfterError);
+  }
+
+
+  private interface Body {
+    boolean process(ImuSample sample);
+  }
+
+  private static ProcessingStage stage(String name, Body body) {
+    return new ProcessingStage() {
+      @NonNull
+      @Override
+      public String getName() {
+        return name;
+      }
+
+      @Override
+      public boolean process(@NonNull ImuSample sample) {
+        return body.process(sample);
+      }
+    };
+  }
+}
@@ -0,0 +1,105 @@
+package com.enricoros.nreal.driver.report;
+
+import com.enricoros.nreal.driver.sim.MotionTrajectory;
+import com.enricoros.nreal.driver.sim.SyntheticImuGenerator;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The generated decoders (ImuReport, OtherReport) against their schemas in {@link NrealReports}: the
+ * committed sources must be what the generator produces, every field and constant check must decode
+ * like a direct reading of the schema, on synthetic reports (incl. saturated values) and random bytes.
+ * The equivalence with the original hand-written decoding, and its speed: DriverBenchmarksTest.
+ */
+public class ReportDecodersTest {
+
+  private static final int REPORTS = 4096;
+  // the unit tests run in the module directory
+  private static final File REPORT_PACKAGE_DIR = new File("src/main/java/com/enricoros/nreal/driver/report");
+
+  private static final Class<?>[] DECODERS = {ImuReport.class, OtherReport.class};
+
+
+  @Test
+  public void committedDecodersAreUpToDate() throws IOException {
+    for (ReportSchema schema : ReportSourceGenerator.SCHEMAS) {
+      String className = schema.name + "Report";
+      File file = new File(REPORT_PACKAGE_DIR, className + ".java");
+      assertTrue("Missing " + file.getAbsolutePath(), file.exists());
+      assertEquals(className + " differs from its schema, run: ./gradlew :app:generateReportDecoders",
+          ReportSourceGenerator.generate(schema, className), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void decodersFollowTheSchemas() throws ReflectiveOperationException {
+    byte[][] reports = testReports();
+    for (int s = 0; s < ReportSourceGenerator.SCHEMAS.length; s++) {
+      ReportSchema schema = ReportSourceGenerator.SCHEMAS[s];
+      Class<?> decoder = DECODERS[s];
+      assertEquals(schema.name + "Report", decoder.getSimpleName());
+      assertEquals(schema.size, decoder.getField("SIZE").getInt(null));
+      for (byte[] report : reports) {
+        assertEquals(schema.name + " valid", constantsMatch(schema, report, true), invoke(decoder, "isValid", report));
+        assertEquals(schema.name + " as expected", constantsMatch(schema, report, false), invoke(decoder, "isAsExpected", report));
+        for (ReportSchema.Field f : schema.fields)
+          assertEquals(schema.name + "." + f.name, fieldValue(f, report), ((Number) invoke(decoder, f.name, report)).longValue());
+      }
+    }
+  }
+
+
+  // synthetic reports with large rates, then random bytes with valid and invalid headers
+  private static byte[][] testReports() {
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.sum(
+        MotionTrajectory.oscillation(2, 90, 8), MotionTrajectory.constantRate(2500, -2500, 0)), 1000, 42).setNoise(0.05, 0.002, 2);
+    byte[][] reports = new byte[2 * REPORTS][SyntheticImuGenerator.REPORT_SIZE];
+    Random random = new Random(32);
+    for (int i = 0; i < REPORTS; i++) {
+      generator.next(reports[i]);
+      random.nextBytes(reports[REPORTS + i]);
+      if ((i & 1) == 0)
+        System.arraycopy(reports[i], 0, reports[REPORTS + i], 0, 14); // valid headers at 0, 1, 12, 13
+    }
+    return reports;
+  }
+
+  private static Object invoke(Class<?> decoder, String method, byte[] report) throws ReflectiveOperationException {
+    Method m = decoder.getMethod(method, byte[].class);
+    try {
+      return m.invoke(null, (Object) report);
+    } catch (InvocationTargetException e) {
+      throw new AssertionError(decoder.getSimpleName() + "." + method, e.getCause());
+    }
+  }
+
+  // the schema read byte by byte, as a reference
+  private static long fieldValue(ReportSchema.Field f, byte[] d) {
+    long value = 0;
+    for (int k = 0; k < f.width; k++) {
+      int index = f.littleEndian ? f.offset + k : f.offset + f.width - 1 - k;
+      value |= (d[index] & 0xFFL) << (8 * k);
+    }
+    if (f.signed && f.width < 8 && (value & (1L << (8 * f.width - 1))) != 0)
+      value -= 1L << (8 * f.width);
+    return value;
+  }
+
+  private static boolean constantsMatch(ReportSchema schema, byte[] d, boolean required) {
+    for (ReportSchema.Constant c : schema.constants)
+      if (c.required == required && (d[c.offset] & c.mask) != (c.value & c.mask))
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,270 @@
+package com.enricoros.nreal.driver.sim;
+
+import com.enricoros.nreal.driver.FlightRecorder;
+import com.enricoros.nreal.driver.ImuEvent;
+import com.enricoros.nreal.driver.ImuEventDetector;
+import com.enricoros.nreal.driver.report.ImuReport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Micro-benchmarks of the per-sample costs added to the reader thread, on synthetic reports.
+ * Each one first checks the results, warms up, then takes the best of a few timed rounds (ns per
+ * sample), which must stay a small share of the 1 ms budget between two IMU reports; the
+ * decoders, compared with each other, take the medians of interleaved rounds.
+ */
+public class DriverBenchmarksTest {
+
+  private static final int REPORTS = 4096; // power of 2
+  private static final int ROUNDS = 5;
+  private static final int MEDIAN_ROUNDS = 11;
+  private static final int SAMPLES_PER_ROUND = 1 << 20;
+  private static final double MAX_SHARE_OF_BUDGET_NS = 10_000; // 1% of 1 ms
+
+  // the reference of the event detection, from the physics and the datasheet, not from the detector
+  private static final double ACCEL_FULL_SCALE_G = 16;
+  private static final double FULL_SCALE_COUNTS = 1 << 23; // 24-bit signed
+  private static final double IMPACT_G = 6;
+  private static final double SATURATION_COUNTS = 0.999 * FULL_SCALE_COUNTS;
+
+  private static volatile long sink;
+
+  /**
+   * Cost of {@link FlightRecorder#record} per IMU report, vs just touching the report.
+   */
+  @Test
+  public void flightRecorderOverhead() {
+    byte[][] reports = generateReports(MotionTrajectory.oscillation(2, 30, 1));
+    FlightRecorder recorder = new FlightRecorder(5000);
+
+    double baselineNs = bestOfRounds(SAMPLES_PER_ROUND, () -> {
+      long acc = 0;
+      for (int i = 0; i < SAMPLES_PER_ROUND; i++)
+        acc += reports[i & (REPORTS - 1)][20];
+      sink = acc;
+    });
+    double recordNs = bestOfRounds(SAMPLES_PER_ROUND, () -> {
+      long acc = 0;
+      for (int i = 0; i < SAMPLES_PER_ROUND; i++) {
+        byte[] report = reports[i & (REPORTS - 1)];
+        long now = System.nanoTime();
+        recorder.record(FlightRecorder.KIND_IMU, report, 64, now, 100_000);
+        acc += report[20];
+      }
+      sink = acc;
+    });
+    assertTrue("Flight recorder: " + (recordNs - baselineNs) + " ns/sample", recordNs - baselineNs < MAX_SHARE_OF_BUDGET_NS);
+  }
+
+  /**
+   * Generated IMU decoder (ImuReport) vs the original hand-written one: both must decode identically
+   * (all fields and both validity checks) on synthetic and random reports, and the generated one
+   * must not be slower.
+   */
+  @Test
+  public void reportDecoders() {
+    // equivalence: synthetic reports (incl. saturated values), then random bytes with valid and invalid headers
+    byte[][] reports = generateReports(MotionTrajectory.sum(MotionTrajectory.oscillation(2, 90, 8), MotionTrajectory.constantRate(2500, -2500, 0)));
+    byte[][] randomReports = new byte[REPORTS][SyntheticImuGenerator.REPORT_SIZE];
+    java.util.Random random = new java.util.Random(32);
+    for (int i = 0; i < REPORTS; i++) {
+      random.nextBytes(randomReports[i]);
+      if ((i & 1) == 0)
+        System.arraycopy(reports[i], 0, randomReports[i], 0, 14); // valid headers at 0, 1, 12, 13
+    }
+    long[] expected = new long[12];
+    long[] actual = new long[12];
+    for (byte[][] set : new byte[][][]{reports, randomReports}) {
+      for (byte[] report : set) {
+        decodeHandWritten(report, expected);
+        decodeGenerated(report, actual);
+        for (int f = 0; f < expected.length; f++)
+          assertEquals("Decoded value " + f, expected[f], actual[f]);
+      }
+    }
+
+    Runnable hand = () -> {
+      long acc = 0;
+      long[] out = new long[12];
+      for (int i = 0; i < SAMPLES_PER_ROUND; i++) {
+        decodeHandWritten(reports[i & (REPORTS - 1)], out);
+        acc += out[0] + out[1] + out[2] + out[3] + out[4] + out[5] + out[6] + out[7] + out[8] + out[9] + out[10] + out[11];
+      }
+      sink = acc;
+    };
+    Runnable generated = () -> {
+      long acc = 0;
+      long[] out = new long[12];
+      for (int i = 0; i < SAMPLES_PER_ROUND; i++) {
+        decodeGenerated(reports[i & (REPORTS - 1)], out);
+        acc += out[0] + out[1] + out[2] + out[3] + out[4] + out[5] + out[6] + out[7] + out[8] + out[9] + out[10] + out[11];
+      }
+      sink = acc;
+    };
+    // interleaved, so that both see the same machine; the margin is only for the timing noise
+    double[] mediansNs = interleavedMedians(SAMPLES_PER_ROUND, hand, generated);
+    double handNs = mediansNs[0], generatedNs = mediansNs[1];
+    assertTrue("Generated decoder: " + generatedNs + " ns/report, hand-written: " + handNs, generatedNs <= handNs * 1.05);
+  }
+
+  /**
+   * Cost of {@link ImuEventDetector#process} per sample, vs just touching the values, on a stream with
+   * an 8 g knock, a 25 g hit (accel and gyro saturated), a 2600 dps kick and a 200 ms drop. First
+   * checks the per-sample impact and saturation flags against a floating point reference, and the
+   * reported events.
+   */
+  @Test
+  public void eventDetection() {
+    MotionTrajectory shocks = MotionTrajectory.sum(MotionTrajectory.oscillation(2, 30, 1),
+        MotionTrajectory.sum(MotionTrajectory.sum(MotionTrajectory.impact(0.5, 0.005, 8, 300), MotionTrajectory.impact(1.5, 0.004, 25, 2500)),
+            MotionTrajectory.sum(MotionTrajectory.freeFall(2.5, 0.2), MotionTrajectory.impact(3.5, 0.010, 0, 2600))));
+    byte[][] reports = generateReports(shocks);
+    long[] uptimesNs = new long[REPORTS];
+    int[][] accel = new int[REPORTS][3];
+    int[][] angVel = new int[REPORTS][3];
+    for (int i = 0; i < REPORTS; i++) {
+      byte[] r = reports[i];
+      uptimesNs[i] = ImuReport.uptimeNs(r);
+      accel[i][0] = ImuReport.accelX(r);
+      accel[i][1] = ImuReport.accelY(r);
+      accel[i][2] = ImuReport.accelZ(r);
+      angVel[i][0] = ImuReport.angVelX(r);
+      angVel[i][1] = ImuReport.angVelY(r);
+      angVel[i][2] = ImuReport.angVelZ(r);
+    }
+
+    // flags on the same sample as the reference, and the expected events
+    List<ImuEvent> events = new ArrayList<>();
+    ImuEventDetector detector = new ImuEventDetector(events::add);
+    final int sampleTypes = ImuEvent.IMPACT | ImuEvent.ACCEL_SATURATION | ImuEvent.GYRO_SATURATION;
+    for (int i = 0; i < REPORTS; i++) {
+      int expected = referenceFlags(accel[i], angVel[i]);
+      int actual = detector.process(uptimesNs[i], accel[i], angVel[i]) & sampleTypes;
+      assertEquals("Event flags of sample " + i, expected, actual);
+    }
+    int[] expectedTypes = {ImuEvent.IMPACT, ImuEvent.IMPACT | ImuEvent.ACCEL_SATURATION | ImuEvent.GYRO_SATURATION, ImuEvent.FREE_FALL, ImuEvent.GYRO_SATURATION};
+    assertEquals("Events: " + events, expectedTypes.length, events.size());
+    for (int e = 0; e < expectedTypes.length; e++)
+      assertEquals("Types of " + events.get(e), expectedTypes[e], events.get(e).types);
+    ImuEvent fall = events.get(2);
+    long fallStartNs = uptimesNs[0] + 2_500_000_000L - 1_000_000L; // the first report is at 1 ms
+    assertTrue("Free fall mistimed: " + fall, Math.abs(fall.startUptimeNs - fallStartNs) <= 2_000_000L && Math.abs(fall.durationNs - 200_000_000L) <= 3_000_000L);
+
+    double baselineNs = bestOfRounds(SAMPLES_PER_ROUND, () -> {
+      long acc = 0;
+      for (int i = 0; i < SAMPLES_PER_ROUND; i++) {
+        int s = i & (REPORTS - 1);
+        acc += uptimesNs[s] + accel[s][2] + angVel[s][2];
+      }
+      sink = acc;
+    });
+    ImuEventDetector timedDetector = new ImuEventDetector(event -> sink += event.types);
+    double detectNs = bestOfRounds(SAMPLES_PER_ROUND, () -> {
+      long acc = 0;
+      for (int i = 0; i < SAMPLES_PER_ROUND; i++) {
+        int s = i & (REPORTS - 1);
+        if (s == 0)
+          timedDetector.markGap(); // the uptimes restart
+        acc += uptimesNs[s] + accel[s][2] + angVel[s][2] + timedDetector.process(uptimesNs[s], accel[s], angVel[s]);
+      }
+      sink = acc;
+    });
+    assertTrue("Event detection: " + (detectNs - baselineNs) + " ns/sample", detectNs - baselineNs < MAX_SHARE_OF_BUDGET_NS);
+  }
+
+  // the detection of impacts and saturation, in floating point
+  private static int referenceFlags(int[] accel, int[] angVel) {
+    double accelG = Math.sqrt((double) accel[0] * accel[0] + (double) accel[1] * accel[1] + (double) accel[2] * accel[2]) * ACCEL_FULL_SCALE_G / FULL_SCALE_COUNTS;
+    int flags = accelG > IMPACT_G ? ImuEvent.IMPACT : 0;
+    for (int axis = 0; axis < 3; axis++) {
+      if (Math.abs((double) accel[axis]) >= SATURATION_COUNTS)
+        flags |= ImuEvent.ACCEL_SATURATION;
+      if (Math.abs((double) angVel[axis]) >= SATURATION_COUNTS)
+        flags |= ImuEvent.GYRO_SATURATION;
+    }
+    return flags;
+  }
+
+  private static void decodeGenerated(byte[] d, long[] out) {
+    out[10] = ImuReport.isValid(d) ? 1 : 0;
+    out[0] = ImuReport.uptimeNs(d);
+    out[1] = ImuReport.angVelX(d);
+    out[2] = ImuReport.angVelY(d);
+    out[3] = ImuReport.angVelZ(d);
+    out[4] = ImuReport.accelX(d);
+    out[5] = ImuReport.accelY(d);
+    out[6] = ImuReport.accelZ(d);
+    out[7] = ImuReport.magX(d);
+    out[8] = ImuReport.magY(d);
+    out[9] = ImuReport.magZ(d);
+    out[11] = ImuReport.isAsExpected(d) ? 1 : 0;
+  }
+
+  // the original decoding of NrealDeviceThread.processIMUData(), as reference: fields, then validity checks
+  private static void decodeHandWritten(byte[] imuData, long[] out) {
+    out[10] = (imuData[0] != 1 || imuData[1] != 2 || imuData[12] != (byte) 0xA0 || imuData[13] != 0x0F || imuData[27] != 0x20 || imuData[42] != 0x00) ? 0 : 1;
+    out[0] = ((long) imuData[4] & 0xFF) | (((long) imuData[5] & 0xFF) << 8) | (((long) imuData[6] & 0xFF) << 16) | (((long) imuData[7] & 0xFF) << 24) |
+        (((long) imuData[8] & 0xFF) << 32) | (((long) imuData[9] & 0xFF) << 40) | (((long) imuData[10] & 0xFF) << 48) | (((long) imuData[11] & 0xFF) << 56);
+    out[1] = (imuData[18] & 0xFF) | ((imuData[19] & 0xFF) << 8) | ((imuData[20] & 0xFF) << 16) | ((imuData[20] & 0x80) != 0 ? (0xFF << 24) : 0);
+    out[2] = (imuData[21] & 0xFF) | ((imuData[22] & 0xFF) << 8) | ((imuData[23] & 0xFF) << 16) | ((imuData[23] & 0x80) != 0 ? (0xFF << 24) : 0);
+    out[3] = (imuData[24] & 0xFF) | ((imuData[25] & 0xFF) << 8) | ((imuData[26] & 0xFF) << 16) | ((imuData[26] & 0x80) != 0 ? (0xFF << 24) : 0);
+    out[4] = (imuData[33] & 0xFF) | ((imuData[34] & 0xFF) << 8) | ((imuData[35] & 0xFF) << 16) | ((imuData[35] & 0x80) != 0 ? (0xFF << 24) : 0);
+    out[5] = (imuData[36] & 0xFF) | ((imuData[37] & 0xFF) << 8) | ((imuData[38] & 0xFF) << 16) | ((imuData[38] & 0x80) != 0 ? (0xFF << 24) : 0);
+    out[6] = (imuData[39] & 0xFF) | ((imuData[40] & 0xFF) << 8) | ((imuData[41] & 0xFF) << 16) | ((imuData[41] & 0x80) != 0 ? (0xFF << 24) : 0);
+    out[7] = (imuData[48] & 0xFF) | ((imuData[49] & 0xFF) << 8);
+    out[8] = (imuData[50] & 0xFF) | ((imuData[51] & 0xFF) << 8);
+    out[9] = (imuData[52] & 0xFF) | ((imuData[53] & 0xFF) << 8);
+    out[11] = (imuData[58] != 0 || imuData[59] != 0 || imuData[60] != 0 || imuData[61] != 0 || (imuData[62] != 0 && imuData[62] != 1) || imuData[63] != 0) ? 0 : 1;
+  }
+
+
+  static byte[][] generateReports(MotionTrajectory trajectory) {
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(trajectory, 1000, 42).setNoise(0.05, 0.002, 2);
+    byte[][] reports = new byte[REPORTS][SyntheticImuGenerator.REPORT_SIZE];
+    for (byte[] report : reports)
+      generator.next(report);
+    return reports;
+  }
+
+  static double bestOfRounds(int samplesPerRound, Runnable round) {
+    round.run(); // warmup
+    round.run();
+    long best = Long.MAX_VALUE;
+    for (int r = 0; r < ROUNDS; r++) {
+      long start = System.nanoTime();
+      round.run();
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    return (double) best / samplesPerRound;
+  }
+
+  /**
+   * @return the median time per sample of each alternative, over warm rounds run alternately
+   */
+  static double[] interleavedMedians(int samplesPerRound, Runnable... alternatives) {
+    for (int w = 0; w < 3; w++) // warmup
+      for (Runnable alternative : alternatives)
+        alternative.run();
+    long[][] roundsNs = new long[alternatives.length][MEDIAN_ROUNDS];
+    for (int r = 0; r < MEDIAN_ROUNDS; r++) {
+      for (int a = 0; a < alternatives.length; a++) {
+        long start = System.nanoTime();
+        alternatives[a].run();
+        roundsNs[a][r] = System.nanoTime() - start;
+      }
+    }
+    double[] mediansNs = new double[alternatives.length];
+    for (int a = 0; a < alternatives.length; a++) {
+      Arrays.sort(roundsNs[a]);
+      mediansNs[a] = (double) roundsNs[a][MEDIAN_ROUNDS / 2] / samplesPerRound;
+    }
+    return mediansNs;
+  }
+}
@@ -0,0 +1,102 @@
+package com.enricoros.nreal.driver.sim;
+
+import androidx.annotation.NonNull;
+
+import com.enricoros.nreal.driver.NrealTransport;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Wraps a transport (typically a {@link SimulatedNrealDevice}) and injects the failures of a real
+ * USB link on demand, each needing a different recovery:
+ * - FAULT_READ_ERRORS: a few IMU reads fail, then the stream continues by itself
+ * - FAULT_STREAM_STOPPED: no more reports (reads time out) until the start command is sent again
+ * - FAULT_INTERFACE_LOST: reads and writes fail until the interfaces are reclaimed (and the stream restarted)
+ * - FAULT_DEAD: nothing works anymore
+ */
+public class FaultInjectingTransport implements NrealTransport {
+
+  public static final int FAULT_NONE = 0;
+  public static final int FAULT_READ_ERRORS = 1;
+  public static final int FAULT_STREAM_STOPPED = 2;
+  public static final int FAULT_INTERFACE_LOST = 3;
+  public static final int FAULT_DEAD = 4;
+
+  private static final int FAILED_READS = 2;
+  private static final byte START_IMU_COMMAND_FIRST_BYTE = (byte) 0xaa;
+
+  private final NrealTransport device;
+  private volatile int mFault = FAULT_NONE;
+  private int failedReads = 0;
+  private volatile long mInjectedFaults = 0;
+
+  public FaultInjectingTransport(@NonNull NrealTransport device) {
+    this.device = device;
+  }
+
+  public void injectFault(int fault) {
+    mFault = fault;
+    mInjectedFaults++;
+  }
+
+  public int getFault() {
+    return mFault;
+  }
+
+  public long getInjectedFaults() {
+    return mInjectedFaults;
+  }
+
+
+  @Override
+  public int readImu(byte[] buffer, int length, int timeoutMs) {
+    switch (mFault) {
+      case FAULT_READ_ERRORS:
+        if (++failedReads <= FAILED_READS)
+          return -1;
+        failedReads = 0;
+        mFault = FAULT_NONE;
+        break;
+      case FAULT_STREAM_STOPPED:
+        LockSupport.parkNanos(timeoutMs * 1_000_000L);
+        return -1;
+      case FAULT_INTERFACE_LOST:
+      case FAULT_DEAD:
+        return -1;
+    }
+    return device.readImu(buffer, length, timeoutMs);
+  }
+
+  @Override
+  public int writeImu(byte[] buffer, int length, int timeoutMs) {
+    int fault = mFault;
+    if (fault == FAULT_INTERFACE_LOST || fault == FAULT_DEAD)
+      return -1;
+    if (fault == FAULT_STREAM_STOPPED && length > 0 && buffer[0] == START_IMU_COMMAND_FIRST_BYTE)
+      mFault = FAULT_NONE;
+    return device.writeImu(buffer, length, timeoutMs);
+  }
+
+  @Override
+  public int readOther(byte[] buffer, int length, int timeoutMs) {
+    int fault = mFault;
+    if (fault == FAULT_INTERFACE_LOST || fault == FAULT_DEAD)
+      return -1;
+    return device.readOther(buffer, length, timeoutMs);
+  }
+
+  @Override
+  public boolean reclaim() {
+    int fault = mFault;
+    if (fault == FAULT_DEAD)
+      return false;
+    if (fault == FAULT_INTERFACE_LOST)
+      mFault = FAULT_STREAM_STOPPED;
+    return device.reclaim();
+  }
+
+  @Override
+  public void close() {
+    device.close();
+  }
+}
@@ -0,0 +1,299 @@
+package com.enricoros.nreal.driver.sim;
+
+import com.enricoros.nreal.driver.FlightRecorder;
+import com.enricoros.nreal.driver.HidrawTransport;
+import com.enricoros.nreal.driver.ImuDataRaw;
+import com.enricoros.nreal.driver.NrealHostDriver;
+import com.enricoros.nreal.driver.NrealTransport;
+import com.enricoros.nreal.driver.report.ImuReport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput of the {@link HidrawTransport} (NIO, as on Linux hosts) replaying a recording, relative
+ * to the in-memory {@link SimulatedNrealDevice} that stands in for the Android USB path (bulkTransfer
+ * needs the glasses): first reading the transport alone, then end to end through the
+ * {@link NrealHostDriver} on a plain JVM (reader, processing pipeline, listener), checking that the
+ * replayed reports are decoded to the same values, faster than the glasses produce them, and that
+ * the stream ends cleanly with the recording. The live mode is checked on a named pipe standing in
+ * for the hidraw node: reports dropped when the reader is a full ring behind, and a reclaim.
+ * <p>
+ * A recording of the glasses - a hidraw capture ('cat /dev/hidrawN > imu.bin') or a flight recorder
+ * dump of the app (.nfr) - is replayed too, when given: -Pnreal.replay.recording=path
+ */
+public class HidrawReplayTest {
+
+  private static final int RATE_HZ = 1000;
+  private static final int REPORTS = Integer.getInteger("nreal.replay.reports", 10_000);
+  private static final String REAL_RECORDING = System.getProperty("nreal.replay.recording");
+  private static final int READ_TIMEOUT_MS = 100;
+  private static final int ROUNDS = 7;
+  // a thread handoff per report (the pump), vs a direct call that generates the report
+  private static final double MAX_HIDRAW_SLOWDOWN = 8;
+  private static final int IMU_RING_REPORTS = 256; // of HidrawTransport
+  private static final long END_TO_END_TIMEOUT_MS = 30_000;
+  private static final byte[] START_IMU_COMMAND = {(byte) 0xaa, (byte) 0xc5, (byte) 0xd1, 0x21, 0x42, 0x04, 0x00, 0x19, 0x01};
+
+  private File recording;
+
+  // of the last end to end run, written by the processing thread
+  private long[] uptimes;
+  private float[][] accelerations;
+  private volatile int receivedSamples;
+  private volatile String endError;
+
+
+  @Before
+  public void setUp() throws IOException {
+    recording = File.createTempFile("hidraw", ".bin");
+  }
+
+  @After
+  public void tearDown() {
+    //noinspection ResultOfMethodCallIgnored
+    recording.delete();
+  }
+
+  @Test
+  public void transportReadsAllReports() throws IOException {
+    recordSynthetic();
+    // warm-up (JIT), then interleaved rounds, so that both see the same machine
+    readAll(newSimulatedDevice(), false);
+    readAll(newHidrawReplay(), true);
+    double[] simulatedNs = new double[ROUNDS];
+    double[] hidrawNs = new double[ROUNDS];
+    for (int r = 0; r < ROUNDS; r++) {
+      simulatedNs[r] = readAll(newSimulatedDevice(), false);
+      hidrawNs[r] = readAll(newHidrawReplay(), true);
+    }
+    Arrays.sort(simulatedNs);
+    Arrays.sort(hidrawNs);
+    double simulatedMedianNs = simulatedNs[ROUNDS / 2], hidrawMedianNs = hidrawNs[ROUNDS / 2];
+    String comparison = String.format("Transport reads: hidraw replay %.0f ns/report, in-memory %.0f ns/report (%.1fx)",
+        hidrawMedianNs, simulatedMedianNs, hidrawMedianNs / simulatedMedianNs);
+    System.out.println(comparison);
+    assertTrue(comparison, hidrawMedianNs <= simulatedMedianNs * MAX_HIDRAW_SLOWDOWN);
+    assertTrue(comparison, hidrawMedianNs < 1e9 / RATE_HZ);
+  }
+
+  @Test
+  public void liveDeviceDropsWhenBehindAndIsReclaimed() throws IOException, InterruptedException {
+    File node = new File(recording.getParentFile(), recording.getName() + ".fifo");
+    assumeTrue("No named pipes on this host", mkfifo(node));
+    // the device side: both ends open, so that neither the command channel nor the pump of the transport wait for a peer
+    try (FileChannel device = FileChannel.open(node.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      HidrawTransport transport = new HidrawTransport(node, null, false);
+      assertNull(transport.open());
+      SyntheticImuGenerator generator = newGenerator();
+      byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+
+      // the reader is away: the ring keeps the oldest reports, the newer ones are dropped (as hidraw does)
+      int sent = IMU_RING_REPORTS + 100;
+      for (int i = 0; i < sent; i++) {
+        generator.next(report);
+        device.write(ByteBuffer.wrap(report));
+      }
+      long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(END_TO_END_TIMEOUT_MS);
+      while (transport.getDroppedImuReports() < sent - IMU_RING_REPORTS && System.nanoTime() < deadlineNs)
+        Thread.sleep(1);
+      assertEquals("Dropped", sent - IMU_RING_REPORTS, transport.getDroppedImuReports());
+      for (int i = 1; i <= IMU_RING_REPORTS; i++) {
+        assertEquals(report.length, transport.readImu(report, report.length, READ_TIMEOUT_MS));
+        assertEquals("Packet of report " + i, i, ImuReport.counter2(report));
+      }
+      assertTrue("More than the ring", transport.readImu(report, report.length, 1) < 0);
+      assertFalse("Live stream ended", transport.isEndOfStream());
+
+      // the node is reopened, and the next reports come through
+      assertTrue("Not reclaimed", transport.reclaim());
+      for (int i = 0; i < 10; i++) {
+        generator.next(report);
+        long packet = ImuReport.counter2(report);
+        device.write(ByteBuffer.wrap(report));
+        assertEquals(report.length, transport.readImu(report, report.length, READ_TIMEOUT_MS));
+        assertEquals("Packet after the reclaim", packet, ImuReport.counter2(report));
+      }
+      transport.close();
+      assertTrue("Read after closing", transport.readImu(report, report.length, 1) < 0);
+    } finally {
+      //noinspection ResultOfMethodCallIgnored
+      node.delete();
+    }
+  }
+
+  @Test
+  public void replayDecodesIdenticallyEndToEnd() throws IOException, InterruptedException {
+    byte[][] reports = recordSynthetic();
+    // warm-up (JIT) of the reader and the processing, then measure
+    endToEnd(reports.length);
+    double hidrawE2eNs = endToEnd(reports.length);
+    assertNull("Clean end of the stream", endError);
+    // the first one only primes the timing
+    assertEquals("Dispatched samples", reports.length - 1, receivedSamples);
+    for (int i = 1; i < reports.length; i++)
+      assertDecoded(reports[i], i - 1);
+    assertTrue("No headroom over the " + RATE_HZ + " Hz of the glasses: " + hidrawE2eNs + " ns/sample", hidrawE2eNs < 1e9 / RATE_HZ);
+  }
+
+  @Test
+  public void realRecordingReplaysEndToEnd() throws IOException, InterruptedException {
+    assumeTrue("No recording of the glasses given (-Pnreal.replay.recording)", REAL_RECORDING != null);
+    byte[][] reports = recordReal(new File(REAL_RECORDING));
+    assertTrue("No IMU reports in " + REAL_RECORDING, reports.length > 1);
+    endToEnd(reports.length);
+    double hidrawE2eNs = endToEnd(reports.length);
+    assertNull("Clean end of the stream", endError);
+    // in order, each one decoded as recorded, only the ones priming the timing (after gaps) missing
+    int r = 0;
+    for (int s = 0; s < receivedSamples; s++) {
+      while (r < reports.length && ImuReport.uptimeNs(reports[r]) != uptimes[s])
+        r++;
+      assertTrue("Sample " + s + " not in the recording, or out of order", r < reports.length);
+      assertDecoded(reports[r++], s);
+    }
+    assertTrue("Dispatched " + receivedSamples + " of " + reports.length, receivedSamples >= reports.length * 0.99);
+    assertTrue("No headroom over the " + RATE_HZ + " Hz of the glasses: " + hidrawE2eNs + " ns/sample", hidrawE2eNs < 1e9 / RATE_HZ);
+  }
+
+
+  // the recording, as hidraw would deliver it
+  private byte[][] recordSynthetic() throws IOException {
+    SyntheticImuGenerator generator = newGenerator();
+    byte[][] reports = new byte[REPORTS][SyntheticImuGenerator.REPORT_SIZE];
+    try (FileOutputStream out = new FileOutputStream(recording)) {
+      for (byte[] report : reports) {
+        generator.next(report);
+        out.write(report);
+      }
+    }
+    return reports;
+  }
+
+  // the valid IMU reports of a capture or a dump, as a capture
+  private byte[][] recordReal(File file) throws IOException {
+    byte[] data = Files.readAllBytes(file.toPath());
+    ByteArrayOutputStream reports = new ByteArrayOutputStream();
+    byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+    if (file.getName().endsWith(".nfr")) {
+      FlightRecorder.Dump dump = FlightRecorder.parse(data);
+      for (int i = 0; i < dump.count; i++) {
+        if (dump.getKind(i) != FlightRecorder.KIND_IMU || dump.getResult(i) != report.length)
+          continue;
+        dump.getReport(i, report);
+        if (ImuReport.isValid(report))
+          reports.write(report, 0, report.length);
+      }
+    } else {
+      for (int offset = 0; offset + report.length <= data.length; offset += report.length) {
+        System.arraycopy(data, offset, report, 0, report.length);
+        if (ImuReport.isValid(report))
+          reports.write(report, 0, report.length);
+      }
+    }
+    byte[] all = reports.toByteArray();
+    Files.write(recording.toPath(), all);
+    byte[][] split = new byte[all.length / report.length][report.length];
+    for (int i = 0; i < split.length; i++)
+      System.arraycopy(all, i * report.length, split[i], 0, report.length);
+    return split;
+  }
+
+  private static boolean mkfifo(File node) throws InterruptedException {
+    try {
+      return new ProcessBuilder("mkfifo", node.getPath()).start().waitFor() == 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private SyntheticImuGenerator newGenerator() {
+    return new SyntheticImuGenerator(MotionTrajectory.oscillation(2, 40, 0.5), RATE_HZ, 38).setNoise(0.05, 0.002, 2);
+  }
+
+  private NrealTransport newSimulatedDevice() {
+    return new SimulatedNrealDevice(newGenerator(), false);
+  }
+
+  private HidrawTransport newHidrawReplay() {
+    HidrawTransport transport = new HidrawTransport(recording, null, true);
+    assertNull(transport.open());
+    return transport;
+  }
+
+  // ns per report
+  private double readAll(NrealTransport transport, boolean recorded) {
+    byte[] buffer = new byte[SyntheticImuGenerator.REPORT_SIZE];
+    transport.writeImu(START_IMU_COMMAND, START_IMU_COMMAND.length, READ_TIMEOUT_MS);
+    long startNs = System.nanoTime();
+    int read = 0;
+    while (read < REPORTS && transport.readImu(buffer, buffer.length, READ_TIMEOUT_MS) > 0)
+      read++;
+    long elapsedNs = System.nanoTime() - startNs;
+    assertEquals("Reports read", REPORTS, read);
+    if (recorded) {
+      // the end, for good
+      assertTrue("Read past the end", transport.readImu(buffer, buffer.length, READ_TIMEOUT_MS) < 0);
+      assertTrue("End of the stream", transport.isEndOfStream());
+      assertFalse("Recording restarted", transport.reclaim());
+    }
+    transport.close();
+    return elapsedNs / (double) read;
+  }
+
+  // ns per dispatched sample, until the end of the recording
+  private double endToEnd(int reports) throws InterruptedException {
+    uptimes = new long[reports];
+    accelerations = new float[reports][];
+    receivedSamples = 0;
+    endError = null;
+    CountDownLatch ended = new CountDownLatch(1);
+    NrealHostDriver driver = new NrealHostDriver(newHidrawReplay(), new NrealHostDriver.Listener() {
+      @Override
+      public void onNewData(ImuDataRaw data) {
+        int i = receivedSamples;
+        uptimes[i] = data.getUptimeNs();
+        accelerations[i] = data.getAcceleration();
+        receivedSamples = i + 1;
+      }
+
+      @Override
+      public void onStreamEnded(String error) {
+        endError = error;
+        ended.countDown();
+      }
+    }, null);
+    long startNs = System.nanoTime();
+    driver.start();
+    assertTrue("Stream not ended", ended.await(END_TO_END_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    long elapsedNs = System.nanoTime() - startNs;
+    driver.stop();
+    return elapsedNs / (double) Math.max(1, receivedSamples);
+  }
+
+  private void assertDecoded(byte[] report, int sample) {
+    assertEquals("Uptime of sample " + sample, ImuReport.uptimeNs(report), uptimes[sample]);
+    assertArrayEquals("Acceleration of sample " + sample,
+        new float[]{ImuReport.accelX(report), ImuReport.accelY(report), ImuReport.accelZ(report)}, accelerations[sample], 0);
+  }
+}
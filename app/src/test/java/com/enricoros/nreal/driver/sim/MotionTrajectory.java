@@ -0,0 +1,126 @@
+package com.enricoros.nreal.driver.sim;
+
+/**
+ * Scripted head motion, used by the {@link SyntheticImuGenerator} to produce ground truth.
+ * Angular velocity is in the body frame (dps), linear acceleration in the world frame (g, gravity excluded).
+ */
+public interface MotionTrajectory {
+
+  void angularVelocityDps(double tS, double[] out);
+
+  void linearAccelerationG(double tS, double[] out);
+
+
+  /**
+   * Head perfectly still.
+   */
+  static MotionTrajectory still() {
+    return constantRate(0, 0, 0);
+  }
+
+  /**
+   * Constant rotation rate around the body axes.
+   */
+  static MotionTrajectory constantRate(double dpsX, double dpsY, double dpsZ) {
+    return new MotionTrajectory() {
+      @Override
+      public void angularVelocityDps(double tS, double[] out) {
+        out[0] = dpsX;
+        out[1] = dpsY;
+        out[2] = dpsZ;
+      }
+
+      @Override
+      public void linearAccelerationG(double tS, double[] out) {
+        out[0] = out[1] = out[2] = 0;
+      }
+    };
+  }
+
+  /**
+   * Sinusoidal back and forth rotation on a single body axis (0: x, 1: y, 2: z), e.g. shaking the head.
+   */
+  static MotionTrajectory oscillation(int axis, double amplitudeDeg, double frequencyHz) {
+    final double omega = 2 * Math.PI * frequencyHz;
+    return new MotionTrajectory() {
+      @Override
+      public void angularVelocityDps(double tS, double[] out) {
+        out[0] = out[1] = out[2] = 0;
+        out[axis] = amplitudeDeg * omega * Math.cos(omega * tS);
+      }
+
+      @Override
+      public void linearAccelerationG(double tS, double[] out) {
+        out[0] = out[1] = out[2] = 0;
+      }
+    };
+  }
+
+  /**
+   * A shock (e.g. a knock on the frame): half-sine linear acceleration on the world x axis, peaking
+   * at peakG, with a rotation kick on the body z axis peaking at peakDps.
+   */
+  static MotionTrajectory impact(double atS, double durationS, double peakG, double peakDps) {
+    return new MotionTrajectory() {
+      @Override
+      public void angularVelocityDps(double tS, double[] out) {
+        out[0] = out[1] = 0;
+        out[2] = peakDps * pulse(tS);
+      }
+
+      @Override
+      public void linearAccelerationG(double tS, double[] out) {
+        out[0] = peakG * pulse(tS);
+        out[1] = out[2] = 0;
+      }
+
+      private double pulse(double tS) {
+        return tS >= atS && tS < atS + durationS ? Math.sin(Math.PI * (tS - atS) / durationS) : 0;
+      }
+    };
+  }
+
+  /**
+   * A drop: the head falls freely (no specific force) between the given times.
+   */
+  static MotionTrajectory freeFall(double startS, double durationS) {
+    return new MotionTrajectory() {
+      @Override
+      public void angularVelocityDps(double tS, double[] out) {
+        out[0] = out[1] = out[2] = 0;
+      }
+
+      @Override
+      public void linearAccelerationG(double tS, double[] out) {
+        out[0] = out[1] = 0;
+        out[2] = tS >= startS && tS < startS + durationS ? -1 : 0;
+      }
+    };
+  }
+
+  /**
+   * Superposition of two trajectories - rates and accelerations are added.
+   */
+  static MotionTrajectory sum(MotionTrajectory a, MotionTrajectory b) {
+    final double[] tmp = new double[3];
+    return new MotionTrajectory() {
+      @Override
+      public void angularVelocityDps(double tS, double[] out) {
+        a.angularVelocityDps(tS, out);
+        b.angularVelocityDps(tS, tmp);
+        out[0] += tmp[0];
+        out[1] += tmp[1];
+        out[2] += tmp[2];
+      }
+
+      @Override
+      public void linearAccelerationG(double tS, double[] out) {
+        a.linearAccelerationG(tS, out);
+        b.linearAccelerationG(tS, tmp);
+        out[0] += tmp[0];
+        out[1] += tmp[1];
+        out[2] += tmp[2];
+      }
+    };
+  }
+}
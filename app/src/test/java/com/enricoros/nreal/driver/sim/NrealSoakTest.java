@@ -0,0 +1,175 @@
+package com.enricoros.nreal.driver.sim;
+
+import com.enricoros.nreal.driver.ImuDataRaw;
+import com.enricoros.nreal.driver.NrealManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hardware-free end-to-end soak of the {@link NrealManager}: repeatedly connects to a paced
+ * {@link SimulatedNrealDevice}, streams for a while, and disconnects, checking heap growth, dispatch
+ * latency (device uptime to listener), lost samples, garbage collections per cycle and the close
+ * time, at 1 kHz and above; and that a quick reconnection restores the state saved when
+ * disconnecting.
+ * <p>
+ * Runs 5 cycles of 1 s by default; longer soaks with -Pnreal.soak.cycles=N -Pnreal.soak.streamMs=MS,
+ * and another high rate with -Pnreal.soak.highRateHz=HZ.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class NrealSoakTest {
+
+  private static final int RATE_HZ = 1000;
+  private static final int HIGH_RATE_HZ = Integer.getInteger("nreal.soak.highRateHz", 2000);
+  private static final int CYCLES = Integer.getInteger("nreal.soak.cycles", 5);
+  private static final long STREAM_MS_PER_CYCLE = Long.getLong("nreal.soak.streamMs", 1000);
+
+  private static final int LATENCY_BUCKETS = 32; // log2 of microseconds
+  private static final long MAX_HEAP_GROWTH_BYTES = 4 * 1024 * 1024;
+  private static final long MAX_CLOSE_MS = 500;
+  private static final long MAX_P99_LATENCY_US = 65_536; // includes the polling of the paused main looper
+  private static final long MAX_GC_GROWTH_PER_CYCLE = 2; // over the first cycle, which warms up
+
+  private final long[] latencyHistogram = new long[LATENCY_BUCKETS];
+  private NrealTestFixture fixture;
+
+
+  @Before
+  public void setUp() {
+    fixture = new NrealTestFixture() {
+      @Override
+      public void onNewDataTemp(ImuDataRaw imuDataRawCopy) {
+        super.onNewDataTemp(imuDataRawCopy);
+        long us = Math.max(1, (System.nanoTime() - imuDataRawCopy.getUptimeNs()) / 1000);
+        latencyHistogram[Math.min(LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(us))]++;
+      }
+    };
+  }
+
+  @After
+  public void tearDown() {
+    fixture.release();
+  }
+
+  @Test
+  public void connectStreamDisconnect() throws InterruptedException {
+    soak(RATE_HZ);
+  }
+
+  @Test
+  public void connectStreamDisconnectAboveOneKilohertz() throws InterruptedException {
+    soak(HIGH_RATE_HZ);
+  }
+
+  private void soak(int rateHz) throws InterruptedException {
+    NrealManager manager = fixture.manager;
+    long heapAfterFirstCycle = 0;
+    long deliveredSamples = 0;
+    long closeMaxNs = 0;
+    long[] gcCounts = new long[CYCLES];
+
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.sum(
+          MotionTrajectory.oscillation(2, 40, 0.5), MotionTrajectory.oscillation(1, 15, 0.3)), rateHz, cycle + 1)
+          .setNoise(0.05, 0.002, 2);
+      SimulatedNrealDevice device = new SimulatedNrealDevice(generator, true);
+
+      long receivedBefore = fixture.receivedSamples;
+      long gcBefore = gcCount();
+      manager.connectToTransport(device);
+      fixture.runFor(STREAM_MS_PER_CYCLE / 2);
+      device.pressButton(2, cycle & 0x7F);
+      fixture.runFor(STREAM_MS_PER_CYCLE - STREAM_MS_PER_CYCLE / 2);
+
+      long closeStart = System.nanoTime();
+      manager.closeNrealUsbDevice();
+      closeMaxNs = Math.max(closeMaxNs, System.nanoTime() - closeStart);
+      fixture.runFor(0);
+      gcCounts[cycle] = gcCount() - gcBefore;
+      deliveredSamples += device.getDeliveredReports();
+      assertTrue("No samples dispatched in cycle " + cycle, fixture.receivedSamples > receivedBefore);
+      assertTrue("Device not closed in cycle " + cycle, device.isClosed());
+
+      if (cycle == 0)
+        heapAfterFirstCycle = usedHeapAfterGc();
+    }
+    long heapGrowth = usedHeapAfterGc() - heapAfterFirstCycle;
+    long gcMax = 0;
+    StringBuilder gcReport = new StringBuilder();
+    for (int cycle = 0; cycle < CYCLES; cycle++) {
+      gcReport.append(cycle > 0 ? ", " : "").append(gcCounts[cycle]);
+      if (cycle > 0)
+        gcMax = Math.max(gcMax, gcCounts[cycle]);
+    }
+    System.out.println("Soak at " + rateHz + " Hz: GCs per cycle " + gcReport + ", heap growth " + heapGrowth / 1024 + " KB, close "
+        + closeMaxNs / 1_000_000 + " ms, p99 latency " + latencyPercentileUs(0.99) + " us");
+
+    assertEquals("Connection errors", 0, fixture.connectionErrors);
+    assertEquals("Button events", CYCLES, fixture.buttonEvents);
+    assertEquals("Disconnections", CYCLES, fixture.disconnections);
+    // the first report of each connection only primes the timing
+    assertEquals("Lost samples", deliveredSamples - CYCLES, fixture.receivedSamples);
+    assertTrue("Heap grew by " + heapGrowth / 1024 + " KB since the first cycle", heapGrowth < MAX_HEAP_GROWTH_BYTES);
+    assertTrue("GCs per cycle: " + gcReport, gcMax <= gcCounts[0] + MAX_GC_GROWTH_PER_CYCLE);
+    assertTrue("Close took " + closeMaxNs / 1_000_000 + " ms", closeMaxNs < MAX_CLOSE_MS * 1_000_000L);
+    assertTrue("p99 dispatch latency " + latencyPercentileUs(0.99) + " us", latencyPercentileUs(0.99) <= MAX_P99_LATENCY_US);
+  }
+
+
+  @Test
+  public void quickReconnectionRestoresTheFinalSnapshot() throws InterruptedException {
+    //noinspection ResultOfMethodCallIgnored
+    new File(RuntimeEnvironment.getApplication().getFilesDir(), "processing_state.bin").delete();
+    NrealManager manager = fixture.manager;
+    // shorter than the period of the snapshots: only the final one is written
+    manager.connectToTransport(new SimulatedNrealDevice(new SyntheticImuGenerator(MotionTrajectory.oscillation(2, 40, 0.5), RATE_HZ, 34), true));
+    fixture.runFor(STREAM_MS_PER_CYCLE / 2);
+    manager.closeNrealUsbDevice();
+    manager.connectToTransport(new SimulatedNrealDevice(new SyntheticImuGenerator(MotionTrajectory.oscillation(2, 40, 0.5), RATE_HZ, 35), true));
+    assertTrue("Not restored: " + fixture.messages, fixture.await(() -> fixture.messages.contains("Restored calibration"), 1000));
+    manager.closeNrealUsbDevice();
+  }
+
+
+  // upper bound of the bucket
+  private long latencyPercentileUs(double percentile) {
+    long total = 0;
+    for (long count : latencyHistogram)
+      total += count;
+    long threshold = (long) Math.ceil(total * percentile);
+    long cumulative = 0;
+    for (int i = 0; i < LATENCY_BUCKETS; i++) {
+      cumulative += latencyHistogram[i];
+      if (cumulative >= threshold && cumulative > 0)
+        return 1L << (i + 1);
+    }
+    return 0;
+  }
+
+  // the collections so far, of all the collectors (-1 for those that don't count)
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+      count += Math.max(0, bean.getCollectionCount());
+    return count;
+  }
+
+  private static long usedHeapAfterGc() {
+    Runtime runtime = Runtime.getRuntime();
+    runtime.gc();
+    runtime.runFinalization();
+    runtime.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
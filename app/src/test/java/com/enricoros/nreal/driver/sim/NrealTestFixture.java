@@ -0,0 +1,115 @@
+package com.enricoros.nreal.driver.sim;
+
+import com.enricoros.nreal.driver.ImuDataRaw;
+import com.enricoros.nreal.driver.ImuEvent;
+import com.enricoros.nreal.driver.NrealManager;
+
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Shared fixture of the tests that run a {@link NrealManager} end to end (under Robolectric): the
+ * manager, with this as its listener recording what is delivered, and the main looper helpers.
+ * <p>
+ * The test thread is the main thread and its looper is paused, so what the reader posts is only
+ * delivered while the test waits in {@link #runFor} or {@link #await}. Call {@link #release()} when
+ * done, as an activity would in onDestroy().
+ */
+public class NrealTestFixture implements NrealManager.Listener {
+
+  public final NrealManager manager;
+
+  // updated on the main thread (the test thread)
+  public int connections;
+  public int disconnections;
+  public int connectionErrors;
+  public long lastConnectionErrorNs;
+  public int buttonEvents;
+  public long receivedSamples;
+  public long lastUptimeNs;
+  public final List<String> messages = new ArrayList<>();
+  public final List<ImuEvent> events = new ArrayList<>();
+
+
+  public NrealTestFixture() {
+    manager = new NrealManager(RuntimeEnvironment.getApplication(), this);
+  }
+
+  public void release() {
+    manager.release();
+    ShadowLooper.idleMainLooper();
+  }
+
+  /**
+   * Delivers what the reader posts, for the given time.
+   */
+  public void runFor(long ms) throws InterruptedException {
+    long endNs = System.nanoTime() + ms * 1_000_000L;
+    do {
+      ShadowLooper.idleMainLooper();
+      Thread.sleep(1);
+    } while (System.nanoTime() < endNs);
+    ShadowLooper.idleMainLooper();
+  }
+
+  /**
+   * Delivers what the reader posts, until the condition holds or the timeout expires.
+   *
+   * @return the condition
+   */
+  public boolean await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+    long endNs = System.nanoTime() + timeoutMs * 1_000_000L;
+    ShadowLooper.idleMainLooper();
+    while (!condition.getAsBoolean() && System.nanoTime() < endNs) {
+      Thread.sleep(1);
+      ShadowLooper.idleMainLooper();
+    }
+    return condition.getAsBoolean();
+  }
+
+
+  @Override
+  public void onDeviceConnected() {
+    connections++;
+  }
+
+  @Override
+  public void onDeviceDisconnected() {
+    disconnections++;
+  }
+
+  @Override
+  public void onPermissionDenied() {
+  }
+
+  @Override
+  public void onConnectionError(String error) {
+    lastConnectionErrorNs = System.nanoTime();
+    connectionErrors++;
+  }
+
+  @Override
+  public void onMessage(String message) {
+    messages.add(message);
+  }
+
+  @Override
+  public void onNewDataTemp(ImuDataRaw imuDataRawCopy) {
+    lastUptimeNs = imuDataRawCopy.getUptimeNs();
+    receivedSamples++;
+  }
+
+  @Override
+  public void onButtonPressedTemp(int buttonId, int relatedValue) {
+    buttonEvents++;
+  }
+
+  @Override
+  public void onImuEvent(ImuEvent event) {
+    events.add(event);
+  }
+}
@@ -0,0 +1,342 @@
+package com.enricoros.nreal.driver.sim;
+
+import android.annotation.SuppressLint;
+
+import androidx.annotation.NonNull;
+
+import com.enricoros.nreal.driver.FlightRecorder;
+import com.enricoros.nreal.driver.ImuStages;
+import com.enricoros.nreal.driver.data.MagnetometerPreprocessor;
+import com.enricoros.nreal.driver.data.OneEuroFilter;
+import com.enricoros.nreal.driver.report.ImuReport;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Grid search of the magnetometer chain parameters of NrealDeviceThread (MagnetometerPreprocessor
+ * cutoff and minIntRange, then the OneEuroFilter smoother), by replaying a decoded session through
+ * every combination in parallel. Each task owns its own preprocessor and filter, and only reads the
+ * shared session arrays, so the search scales with the cores: scaling() measures the speedup.
+ * <p>
+ * Scoring, lower is better: RMS error of the output vs a reference field, so that both jitter and
+ * lag (tracking) count, and an uncalibrated (zero) output counts as a full-scale error.
+ * - synthetic sessions: the reference is the true (unit) magnetic field
+ * - recorded sessions (no truth): the reference is estimated in hindsight, from the calibration of
+ * the whole session and a centered (zero lag) moving average of +-REFERENCE_HALF_WINDOW samples
+ * <p>
+ * Sessions need at least MIN_SESSION_S of head motion in most orientations, for the calibration and
+ * the smoother to settle: a flight recorder dump only holds the last ~5 s, so several dumps can be
+ * concatenated, or a longer recording of raw reports (as replayed by the HidrawTransport) used.
+ *
+ * @noinspection unused
+ */
+public class ParameterTuner {
+
+  private static final int TOP_CONFIGURATIONS = 5;
+  public static final double MIN_SESSION_S = 60;
+  private static final int REFERENCE_HALF_WINDOW = 25;
+  private static final long MAX_SAMPLE_INTERVAL_NS = 100_000_000L; // a longer interval is a gap
+
+  // the grid, around the current defaults (100, 200, no smoother); a smoother minCutoff of 0 = no smoother
+  public static final float[] CUTOFF_FREQUENCIES = {10, 30, 100, 300, 1000};
+  public static final int[] MIN_INT_RANGES = {50, 100, 200, 400, 800};
+  public static final float[] SMOOTHER_MIN_CUTOFFS = {0, 0.3f, 1, 3};
+  public static final float[] SMOOTHER_BETAS = {0, 1, 5};
+  private static final float SMOOTHER_DERIVATIVE_CUTOFF = 1;
+
+  /**
+   * Decoded magnetometer input, shared read-only by all the workers.
+   */
+  public static final class Session {
+    final String name;
+    final int count;
+    final double durationS;
+    final int[] mag;         // x, y, z counts per sample
+    final float[] dT;        // seconds since the previous sample (0 for the first, and after a gap)
+    final float[] reference; // x, y, z reference field per sample
+    final boolean estimated; // reference estimated from the session itself
+
+    private Session(String name, int count, int[] mag, float[] dT, float[] reference, boolean estimated) {
+      double durationS = 0;
+      for (int i = 0; i < count; i++)
+        durationS += dT[i];
+      this.name = name;
+      this.count = count;
+      this.durationS = durationS;
+      this.mag = mag;
+      this.dT = dT;
+      this.reference = reference;
+      this.estimated = estimated;
+    }
+
+    /**
+     * Head turning on all axes (covering most orientations, as calibration needs), with a noisy,
+     * off-center magnetometer, and the true field as reference.
+     */
+    @NonNull
+    @SuppressLint("DefaultLocale")
+    public static Session synthetic(double durationS, long seed) {
+      SyntheticImuGenerator generator = syntheticGenerator(seed);
+      int count = (int) (durationS * generator.getSampleRateHz());
+      Decoder decoder = new Decoder(count);
+      byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+      float[] field = new float[3];
+      float[] truth = new float[count * 3];
+      for (int i = 0; i < count; i++) {
+        generator.next(report);
+        decoder.add(report);
+        generator.getTrueMagneticField(field);
+        System.arraycopy(field, 0, truth, i * 3, 3);
+      }
+      return new Session(String.format("synthetic %.0f s, turning", durationS), count, decoder.mag, decoder.dT, truth, false);
+    }
+
+    /**
+     * The valid IMU reports of one or more flight recorder dumps (see {@link FlightRecorder#parse}),
+     * in the given order.
+     */
+    @NonNull
+    public static Session fromFlightRecorderDumps(@NonNull byte[]... dumps) {
+      FlightRecorder.Dump[] parsed = new FlightRecorder.Dump[dumps.length];
+      int entries = 0;
+      for (int d = 0; d < dumps.length; d++)
+        entries += (parsed[d] = FlightRecorder.parse(dumps[d])).count;
+      Decoder decoder = new Decoder(entries);
+      byte[] report = new byte[ImuReport.SIZE];
+      for (FlightRecorder.Dump dump : parsed) {
+        decoder.markGap();
+        for (int e = 0; e < dump.count; e++) {
+          if (dump.getKind(e) != FlightRecorder.KIND_IMU || dump.getResult(e) != ImuReport.SIZE)
+            continue;
+          dump.getReport(e, report);
+          decoder.add(report);
+        }
+      }
+      return decoder.toRecordedSession(dumps.length + " flight recorder dumps");
+    }
+
+    /**
+     * The valid IMU reports of a recording of raw reports, back to back, as replayed by the
+     * HidrawTransport.
+     */
+    @NonNull
+    public static Session fromRecording(@NonNull byte[] recording) {
+      Decoder decoder = new Decoder(recording.length / ImuReport.SIZE);
+      byte[] report = new byte[ImuReport.SIZE];
+      for (int offset = 0; offset + ImuReport.SIZE <= recording.length; offset += ImuReport.SIZE) {
+        System.arraycopy(recording, offset, report, 0, ImuReport.SIZE);
+        decoder.add(report);
+      }
+      return decoder.toRecordedSession("recording");
+    }
+  }
+
+  static SyntheticImuGenerator syntheticGenerator(long seed) {
+    return new SyntheticImuGenerator(MotionTrajectory.sum(MotionTrajectory.oscillation(0, 150, 0.13),
+        MotionTrajectory.sum(MotionTrajectory.oscillation(1, 150, 0.21), MotionTrajectory.oscillation(2, 150, 0.29))), 1000, seed)
+        .setNoise(0.05, 0.002, 3)
+        .setMagnetometerCalibration(31000, 34500, 33200, 900);
+  }
+
+  // decodes the magnetometer and the intervals of the valid reports
+  private static final class Decoder {
+    final int[] mag;
+    final float[] dT;
+    int count = 0;
+    long lastUptimeNs = -1;
+
+    Decoder(int capacity) {
+      mag = new int[capacity * 3];
+      dT = new float[capacity];
+    }
+
+    void add(byte[] report) {
+      if (!ImuReport.isValid(report))
+        return;
+      mag[count * 3] = ImuReport.magX(report);
+      mag[count * 3 + 1] = ImuReport.magY(report);
+      mag[count * 3 + 2] = ImuReport.magZ(report);
+      long uptimeNs = ImuReport.uptimeNs(report);
+      long intervalNs = uptimeNs - lastUptimeNs;
+      dT[count] = lastUptimeNs < 0 || intervalNs <= 0 || intervalNs > MAX_SAMPLE_INTERVAL_NS ? 0 : intervalNs * ImuStages.TICK_SCALE_S;
+      lastUptimeNs = uptimeNs;
+      count++;
+    }
+
+    void markGap() {
+      lastUptimeNs = -1;
+    }
+
+    // with the reference estimated in hindsight: calibrated on the whole session, then a centered moving average
+    @SuppressLint("DefaultLocale")
+    Session toRecordedSession(String source) {
+      int[] min = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE};
+      int[] max = {Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+      for (int i = 0; i < count * 3; i++) {
+        min[i % 3] = Math.min(min[i % 3], mag[i]);
+        max[i % 3] = Math.max(max[i % 3], mag[i]);
+      }
+      double[] prefix = new double[(count + 1) * 3];
+      for (int i = 0; i < count; i++)
+        for (int axis = 0; axis < 3; axis++) {
+          double halfRange = Math.max(1, (max[axis] - min[axis]) / 2.0);
+          double normalized = (mag[i * 3 + axis] - (max[axis] + min[axis]) / 2.0) / halfRange;
+          prefix[(i + 1) * 3 + axis] = prefix[i * 3 + axis] + normalized;
+        }
+      float[] reference = new float[count * 3];
+      for (int i = 0; i < count; i++) {
+        int from = Math.max(0, i - REFERENCE_HALF_WINDOW), to = Math.min(count, i + REFERENCE_HALF_WINDOW + 1);
+        for (int axis = 0; axis < 3; axis++)
+          reference[i * 3 + axis] = (float) ((prefix[to * 3 + axis] - prefix[from * 3 + axis]) / (to - from));
+      }
+      return new Session(String.format("%s, %d IMU reports", source, count), count, Arrays.copyOf(mag, count * 3), Arrays.copyOf(dT, count), reference, true);
+    }
+  }
+
+  /**
+   * Scores the whole grid on the given number of threads, and lists the best configurations.
+   */
+  @NonNull
+  @SuppressLint("DefaultLocale")
+  public static String tune(@NonNull Session session, int threads) throws InterruptedException {
+    if (session.durationS < MIN_SESSION_S)
+      throw new IllegalArgumentException(String.format("The session lasts %.1f s, tuning needs at least %.0f s of motion", session.durationS, MIN_SESSION_S));
+    float[][] configurations = grid();
+    long startNs = System.nanoTime();
+    float[][] scores = scoreAll(session, configurations, threads);
+    double elapsedS = (System.nanoTime() - startNs) / 1e9;
+
+    Integer[] order = new Integer[configurations.length];
+    for (int i = 0; i < order.length; i++)
+      order[i] = i;
+    Arrays.sort(order, (a, b) -> Float.compare(scores[a][0], scores[b][0]));
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Parameter tuning on %s: %d configurations, %d threads, %.2f s (%.1f M samples/s)\n",
+        session.name, configurations.length, threads, elapsedS, (double) configurations.length * session.count / elapsedS / 1e6));
+    sb.append(String.format(" (score: RMS error vs the %s field, over %.0f s)\n", session.estimated ? "estimated" : "true", session.durationS));
+    for (int rank = 0; rank < configurations.length; rank++) {
+      int i = order[rank];
+      if (rank < TOP_CONFIGURATIONS || isDefault(configurations[i]))
+        sb.append(String.format(" %3d. %s: score %.4f, calibrated after %.2f s%s\n",
+            rank + 1, describe(configurations[i]), scores[i][0], scores[i][1], isDefault(configurations[i]) ? " (current)" : ""));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Times the whole grid on 1, 2, 4, ... threads, up to the available processors.
+   */
+  @NonNull
+  @SuppressLint("DefaultLocale")
+  public static String scaling(@NonNull Session session) throws InterruptedException {
+    int processors = Runtime.getRuntime().availableProcessors();
+    List<Integer> threadCounts = new ArrayList<>();
+    for (int threads = 1; threads < processors; threads *= 2)
+      threadCounts.add(threads);
+    threadCounts.add(processors);
+    int[] counts = new int[threadCounts.size()];
+    for (int i = 0; i < counts.length; i++)
+      counts[i] = threadCounts.get(i);
+    double[] timesS = gridTimesS(session, counts);
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Tuner scaling (%d configurations, %d samples, %d processors):\n", grid().length, session.count, processors));
+    for (int i = 0; i < counts.length; i++)
+      sb.append(String.format(" - %2d threads: %.3f s, speedup %.2fx (efficiency %.0f%%)\n",
+          counts[i], timesS[i], timesS[0] / timesS[i], 100 * timesS[0] / timesS[i] / counts[i]));
+    return sb.toString();
+  }
+
+  /**
+   * @return the best of a few timings of the whole grid, in seconds, for each number of threads
+   */
+  static double[] gridTimesS(Session session, int... threadCounts) throws InterruptedException {
+    float[][] configurations = grid();
+    scoreAll(session, configurations, threadCounts[threadCounts.length - 1]); // warmup
+    double[] timesS = new double[threadCounts.length];
+    for (int i = 0; i < threadCounts.length; i++) {
+      timesS[i] = Double.MAX_VALUE;
+      for (int round = 0; round < 3; round++) {
+        long startNs = System.nanoTime();
+        scoreAll(session, configurations, threadCounts[i]);
+        timesS[i] = Math.min(timesS[i], (System.nanoTime() - startNs) / 1e9);
+      }
+    }
+    return timesS;
+  }
+
+  // {cutoffFrequency, minIntRange, smootherMinCutoff, smootherBeta}
+  private static float[][] grid() {
+    List<float[]> configurations = new ArrayList<>();
+    for (float cutoff : CUTOFF_FREQUENCIES)
+      for (int minIntRange : MIN_INT_RANGES)
+        for (float minCutoff : SMOOTHER_MIN_CUTOFFS)
+          for (float beta : SMOOTHER_BETAS)
+            if (minCutoff > 0 || beta == SMOOTHER_BETAS[0])
+              configurations.add(new float[]{cutoff, minIntRange, minCutoff, beta});
+    return configurations.toArray(new float[0][]);
+  }
+
+  private static float[][] scoreAll(Session session, float[][] configurations, int threads) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<float[]>> futures = new ArrayList<>(configurations.length);
+      for (float[] c : configurations)
+        futures.add(executor.submit(() -> score(session, c)));
+      float[][] scores = new float[configurations.length][];
+      for (int i = 0; i < scores.length; i++)
+        scores[i] = futures.get(i).get();
+      return scores;
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Replays the session through the chain of the standard stages (ImuStages) with its own instances.
+   *
+   * @return {score, seconds until calibrated (or the session length)}
+   */
+  static float[] score(Session session, float[] configuration) {
+    MagnetometerPreprocessor preprocessor = new MagnetometerPreprocessor(configuration[0], (int) configuration[1]);
+    OneEuroFilter smoother = configuration[2] > 0 ? new OneEuroFilter(3, configuration[2], configuration[3], SMOOTHER_DERIVATIVE_CUTOFF) : null;
+    int[] magRaw = new int[3];
+    double errorSq = 0, timeS = 0, calibratedS = -1;
+
+    for (int i = 0; i < session.count; i++) {
+      float dT = session.dT[i];
+      timeS += dT;
+      System.arraycopy(session.mag, i * 3, magRaw, 0, 3);
+      float[] normalized = preprocessor.process(magRaw, dT);
+      boolean calibrated = normalized[0] != 0 || normalized[1] != 0 || normalized[2] != 0;
+      if (calibrated && calibratedS < 0)
+        calibratedS = timeS;
+      float[] out = smoother != null ? smoother.process(normalized, dT) : normalized;
+
+      for (int axis = 0; axis < 3; axis++) {
+        float e = out[axis] - session.reference[i * 3 + axis];
+        errorSq += e * e;
+      }
+    }
+    return new float[]{(float) Math.sqrt(errorSq / (3.0 * session.count)), (float) (calibratedS < 0 ? timeS : calibratedS)};
+  }
+
+  private static boolean isDefault(float[] c) {
+    return c[0] == 100 && c[1] == 200 && c[2] == 0;
+  }
+
+  @SuppressLint("DefaultLocale")
+  private static String describe(float[] c) {
+    return String.format("cutoff %6.1f, minIntRange %3d, smoother %s", c[0], (int) c[1],
+        c[2] > 0 ? String.format("%.1f Hz / beta %.0f", c[2], c[3]) : "off");
+  }
+}
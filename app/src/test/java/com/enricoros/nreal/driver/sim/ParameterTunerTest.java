@@ -0,0 +1,90 @@
+package com.enricoros.nreal.driver.sim;
+
+import com.enricoros.nreal.driver.FlightRecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * The scoring of the {@link ParameterTuner}: on a recording (no truth), the error vs the reference
+ * estimated in hindsight must rank configurations like the error vs the true field, and penalize
+ * the lag of a heavy smoother; a flight recorder dump alone is too short to tune on; and the grid
+ * search scales with the cores (on a machine with several).
+ */
+public class ParameterTunerTest {
+
+  private static final long SEED = 33;
+  private static final double SESSION_S = ParameterTuner.MIN_SESSION_S + 1;
+
+  private static final float[] CURRENT = {100, 200, 0, 0};
+  private static final float[] LAGGING_SMOOTHER = {100, 200, 0.3f, 0};
+  private static final float[] SLOW_LOW_PASS = {10, 200, 0, 0};
+  private static final float[] JITTERY_LOW_PASS = {1000, 200, 0, 0};
+  private static final int MAX_SCALING_THREADS = 4;
+  private static final double MIN_SCALING_EFFICIENCY = 0.7;
+
+
+  @Test
+  public void estimatedReferenceRanksLikeTheTruth() {
+    ParameterTuner.Session synthetic = ParameterTuner.Session.synthetic(SESSION_S, SEED);
+    ParameterTuner.Session recorded = ParameterTuner.Session.fromRecording(record((int) (SESSION_S * 1000)));
+    assertEquals(synthetic.count, recorded.count);
+
+    float[][] configurations = {CURRENT, LAGGING_SMOOTHER, SLOW_LOW_PASS, JITTERY_LOW_PASS};
+    float[] trueScores = new float[configurations.length];
+    float[] estimatedScores = new float[configurations.length];
+    for (int c = 0; c < configurations.length; c++) {
+      trueScores[c] = ParameterTuner.score(synthetic, configurations[c])[0];
+      estimatedScores[c] = ParameterTuner.score(recorded, configurations[c])[0];
+    }
+    for (int a = 0; a < configurations.length; a++)
+      for (int b = a + 1; b < configurations.length; b++)
+        assertEquals("Ranking of configurations " + a + " and " + b + ": true " + trueScores[a] + " vs " + trueScores[b] + ", estimated " + estimatedScores[a] + " vs " + estimatedScores[b],
+            trueScores[a] < trueScores[b], estimatedScores[a] < estimatedScores[b]);
+    assertTrue("Lag not penalized: " + estimatedScores[1] + " vs " + estimatedScores[0], estimatedScores[1] > estimatedScores[0]);
+  }
+
+  @Test
+  public void flightRecorderDumpIsTooShort() {
+    FlightRecorder recorder = new FlightRecorder(5000);
+    SyntheticImuGenerator generator = ParameterTuner.syntheticGenerator(SEED);
+    byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+    for (int i = 0; i < 6000; i++) {
+      generator.next(report);
+      recorder.record(FlightRecorder.KIND_IMU, report, report.length, i * 1_000_000L, 1_000_000L);
+    }
+    ParameterTuner.Session session = ParameterTuner.Session.fromFlightRecorderDumps(recorder.serialize("test"));
+    assertEquals(5000, session.count);
+    assertThrows(IllegalArgumentException.class, () -> ParameterTuner.tune(session, 1));
+  }
+
+
+  @Test
+  public void searchScalesWithTheCores() throws InterruptedException {
+    int threads = Math.min(MAX_SCALING_THREADS, Runtime.getRuntime().availableProcessors());
+    assumeTrue("Single processor", threads >= 2);
+    // shorter than a tuning session: the timing only needs the same work on each thread count
+    ParameterTuner.Session session = ParameterTuner.Session.synthetic(20, SEED);
+    double[] timesS = ParameterTuner.gridTimesS(session, 1, threads);
+    double efficiency = timesS[0] / timesS[1] / threads;
+    assertTrue(String.format("Speedup on %d threads: %.2fx (%.0f%% efficiency)", threads, timesS[0] / timesS[1], efficiency * 100),
+        efficiency >= MIN_SCALING_EFFICIENCY);
+  }
+
+
+  // the raw reports of the synthetic session, back to back
+  private static byte[] record(int count) {
+    SyntheticImuGenerator generator = ParameterTuner.syntheticGenerator(SEED);
+    byte[] recording = new byte[count * SyntheticImuGenerator.REPORT_SIZE];
+    byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+    for (int i = 0; i < count; i++) {
+      generator.next(report);
+      System.arraycopy(report, 0, recording, i * report.length, report.length);
+    }
+    return recording;
+  }
+}
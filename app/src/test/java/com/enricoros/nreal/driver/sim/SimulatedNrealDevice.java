@@ -0,0 +1,129 @@
+package com.enricoros.nreal.driver.sim;
+
+import androidx.annotation.NonNull;
+
+import com.enricoros.nreal.driver.NrealTransport;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Local stand-in for the glasses: streams the reports of a {@link SyntheticImuGenerator} once the
+ * start command is received, and replays injected button presses on the 'other' interface.
+ * <p>
+ * When paced, the device clock is aligned to System.nanoTime() on start and reports are released
+ * at their uptime, so (host time - uptimeNs) at the receiver is the end-to-end latency. When not
+ * paced, reports are returned as fast as they are read.
+ */
+public class SimulatedNrealDevice implements NrealTransport {
+
+  private static final byte[] START_IMU_COMMAND = {(byte) 0xaa, (byte) 0xc5, (byte) 0xd1, 0x21, 0x42, 0x04, 0x00, 0x19, 0x01};
+
+  private final SyntheticImuGenerator generator;
+  private final boolean paced;
+  private final byte[] nextReport = new byte[SyntheticImuGenerator.REPORT_SIZE];
+  private final ConcurrentLinkedQueue<int[]> pendingButtons = new ConcurrentLinkedQueue<>();
+
+  private volatile boolean mStarted = false;
+  private volatile boolean mClosed = false;
+  private long nextReportUptimeNs;
+  private long deliveredReports = 0;
+
+
+  public SimulatedNrealDevice(@NonNull SyntheticImuGenerator generator, boolean paced) {
+    this.generator = generator;
+    this.paced = paced;
+  }
+
+  /**
+   * Queues a button event, to be read on the 'other' interface (see NrealDeviceThread.processOtherData()).
+   */
+  public void pressButton(int buttonIndex, int value) {
+    pendingButtons.add(new int[]{buttonIndex, value});
+  }
+
+  public long getDeliveredReports() {
+    return deliveredReports;
+  }
+
+  public boolean isClosed() {
+    return mClosed;
+  }
+
+
+  @Override
+  public int readImu(byte[] buffer, int length, int timeoutMs) {
+    if (mClosed)
+      return -1;
+    if (!mStarted) {
+      LockSupport.parkNanos(timeoutMs * 1_000_000L);
+      return -1;
+    }
+    if (paced) {
+      long waitNs = nextReportUptimeNs - System.nanoTime();
+      if (waitNs > timeoutMs * 1_000_000L) {
+        LockSupport.parkNanos(timeoutMs * 1_000_000L);
+        return -1;
+      }
+      while (waitNs > 0) {
+        LockSupport.parkNanos(waitNs);
+        waitNs = nextReportUptimeNs - System.nanoTime();
+      }
+    }
+    int count = Math.min(length, nextReport.length);
+    System.arraycopy(nextReport, 0, buffer, 0, count);
+    deliveredReports++;
+    stageNextReport();
+    return count;
+  }
+
+  @Override
+  public int writeImu(byte[] buffer, int length, int timeoutMs) {
+    if (mClosed)
+      return -1;
+    if (length >= START_IMU_COMMAND.length && startsWith(buffer, START_IMU_COMMAND) && !mStarted) {
+      if (paced)
+        generator.setClock(generator.getClockDriftPpm(), System.nanoTime());
+      stageNextReport();
+      mStarted = true;
+    }
+    return length;
+  }
+
+  @Override
+  public int readOther(byte[] buffer, int length, int timeoutMs) {
+    if (mClosed)
+      return -1;
+    int[] button = pendingButtons.poll();
+    if (button == null || length < 31)
+      return -1;
+    for (int i = 0; i < length; i++)
+      buffer[i] = 0;
+    buffer[22] = (byte) button[0];
+    buffer[30] = (byte) button[1];
+    return length;
+  }
+
+  @Override
+  public boolean reclaim() {
+    return !mClosed;
+  }
+
+  @Override
+  public void close() {
+    mClosed = true;
+  }
+
+
+  private void stageNextReport() {
+    generator.next(nextReport);
+    nextReportUptimeNs = generator.getDeviceUptimeNs();
+  }
+
+  private static boolean startsWith(byte[] data, byte[] prefix) {
+    for (int i = 0; i < prefix.length; i++)
+      if (data[i] != prefix[i])
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,177 @@
+package com.enricoros.nreal.driver.sim;
+
+import com.enricoros.nreal.driver.ImuStages;
+import com.enricoros.nreal.driver.data.MagnetometerPreprocessor;
+import com.enricoros.nreal.driver.data.OneEuroFilter;
+import com.enricoros.nreal.driver.report.ImuReport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Measures the jitter reduction and the added lag of the smoothing of the filter stage, on
+ * synthetic data: a still segment (jitter = RMS error vs the truth), followed by a head nod (lag =
+ * delay that best aligns the output with the truth). For the accelerometer, with the
+ * {@link OneEuroFilter} settings of the stage; for the magnetometer, of the low-pass of the
+ * {@link MagnetometerPreprocessor}, alone and with the same smoothing on top.
+ */
+public class SmoothingEvaluatorTest {
+
+  private static final int RATE_HZ = 1000;
+  private static final int STILL_SAMPLES = 5 * RATE_HZ;
+  private static final int MOTION_SAMPLES = 5 * RATE_HZ;
+  private static final int WARMUP_SAMPLES = RATE_HZ / 2;
+  private static final int MAX_LAG_SAMPLES = 200;
+  private static final double NOD_FREQUENCY_HZ = 1.5;
+
+  // the settings of the standard stages (NrealDeviceThread)
+  private static final float[] ACCEL_SMOOTHER = {1f, 5f, 1f};
+  private static final float MAG_CUTOFF = 100f;
+  private static final int MAG_MIN_INT_RANGE = 200;
+
+  // 16-bit magnetometer around the center, 1000 counts per unit field
+  private static final int MAG_CENTER = 32768;
+  private static final int MAG_COUNTS = 1000;
+
+  private static final int JITTER_RAW = 0;
+  private static final int JITTER_OUT = 1;
+  private static final int LAG_MS = 2;
+  private static final int MOTION_ERROR = 3;
+
+
+  @Test
+  public void accelerometerSmoothing() {
+    OneEuroFilter smoother = new OneEuroFilter(3, ACCEL_SMOOTHER[0], ACCEL_SMOOTHER[1], ACCEL_SMOOTHER[2]);
+    float[] accel = new float[3];
+    float[] result = evaluate(new SyntheticImuGenerator(nodAfterStill(), RATE_HZ, 1234).setNoise(0, 0.002, 0), (report, truth, generator) -> {
+      accel[0] = ImuReport.accelX(report) * ImuStages.ACCEL_SCALE_G;
+      accel[1] = ImuReport.accelY(report) * ImuStages.ACCEL_SCALE_G;
+      accel[2] = ImuReport.accelZ(report) * ImuStages.ACCEL_SCALE_G;
+      generator.getTrueAccelerationG(truth);
+      System.arraycopy(accel, 0, truth, 3, 3);
+      return smoother.process(accel, 1f / RATE_HZ);
+    });
+    // as documented on ImuStages.Filter
+    assertTrue("Jitter reduced by " + reduction(result), reduction(result) >= 0.85);
+    assertTrue("Lag " + result[LAG_MS] + " ms", result[LAG_MS] <= 6);
+  }
+
+  @Test
+  public void magnetometerLowPassNeedsNoSmoothing() {
+    float[] lowPass = evaluateMagnetometer(null);
+    float[] smoothed = evaluateMagnetometer(new OneEuroFilter(3, ACCEL_SMOOTHER[0], ACCEL_SMOOTHER[1], ACCEL_SMOOTHER[2]));
+    // the low-pass alone is already well below a degree of heading (0.0175 of the unit field) when still...
+    assertTrue("Low-pass jitter " + lowPass[JITTER_OUT], lowPass[JITTER_OUT] < 0.0175f / 4);
+    // ...while smoothing on top of it lags, and tracks worse, when moving
+    assertTrue("Smoothing lag " + smoothed[LAG_MS] + " ms vs " + lowPass[LAG_MS], smoothed[LAG_MS] > lowPass[LAG_MS]);
+    assertTrue("Smoothing error " + smoothed[MOTION_ERROR] + " vs " + lowPass[MOTION_ERROR], smoothed[MOTION_ERROR] > lowPass[MOTION_ERROR]);
+  }
+
+
+  private float[] evaluateMagnetometer(OneEuroFilter smoother) {
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(nodAfterStill(), RATE_HZ, 99)
+        .setNoise(0, 0, 10)
+        .setMagnetometerCalibration(MAG_CENTER, MAG_CENTER, MAG_CENTER, MAG_COUNTS);
+    MagnetometerPreprocessor preprocessor = new MagnetometerPreprocessor(MAG_CUTOFF, MAG_MIN_INT_RANGE);
+    int min = MAG_CENTER - MAG_COUNTS, max = MAG_CENTER + MAG_COUNTS;
+    preprocessor.restoreCalibration(new int[]{min, min, min, max, max, max});
+    int[] magRaw = new int[3];
+    return evaluate(generator, (report, truth, g) -> {
+      magRaw[0] = ImuReport.magX(report);
+      magRaw[1] = ImuReport.magY(report);
+      magRaw[2] = ImuReport.magZ(report);
+      g.getTrueMagneticField(truth);
+      for (int axis = 0; axis < 3; axis++)
+        truth[3 + axis] = (float) (magRaw[axis] - MAG_CENTER) / MAG_COUNTS;
+      float[] mag = preprocessor.process(magRaw, 1f / RATE_HZ);
+      return smoother != null ? smoother.process(mag, 1f / RATE_HZ) : mag;
+    });
+  }
+
+  private interface Chain {
+    /**
+     * @param values to be filled with the truth (0..2) and the unprocessed input (3..5)
+     * @return the output
+     */
+    float[] process(byte[] report, float[] values, SyntheticImuGenerator generator);
+  }
+
+  /**
+   * @return {input jitter, output jitter, lag (ms), output RMS error during motion}
+   */
+  private static float[] evaluate(SyntheticImuGenerator generator, Chain chain) {
+    byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+    float[] values = new float[6];
+    float[] motionTruth = new float[MOTION_SAMPLES];
+    float[] motionOutput = new float[MOTION_SAMPLES];
+    double rawSq = 0, outputSq = 0;
+    int stillCount = 0;
+
+    for (int i = 0; i < STILL_SAMPLES + MOTION_SAMPLES; i++) {
+      generator.next(report);
+      float[] output = chain.process(report, values, generator);
+
+      if (i < STILL_SAMPLES) {
+        if (i < WARMUP_SAMPLES)
+          continue;
+        for (int axis = 0; axis < 3; axis++) {
+          rawSq += (values[3 + axis] - values[axis]) * (values[3 + axis] - values[axis]);
+          outputSq += (output[axis] - values[axis]) * (output[axis] - values[axis]);
+        }
+        stillCount += 3;
+      } else {
+        // the nod (pitch) moves gravity and the field on the x axis
+        motionTruth[i - STILL_SAMPLES] = values[0];
+        motionOutput[i - STILL_SAMPLES] = output[0];
+      }
+    }
+
+    int bestLag = 0;
+    double bestErr = Double.MAX_VALUE, zeroLagErr = 0;
+    for (int lag = 0; lag <= MAX_LAG_SAMPLES; lag++) {
+      double err = 0;
+      for (int i = MAX_LAG_SAMPLES; i < MOTION_SAMPLES; i++) {
+        float d = motionOutput[i] - motionTruth[i - lag];
+        err += d * d;
+      }
+      if (lag == 0)
+        zeroLagErr = err;
+      if (err < bestErr) {
+        bestErr = err;
+        bestLag = lag;
+      }
+    }
+
+    return new float[]{
+        (float) Math.sqrt(rawSq / stillCount),
+        (float) Math.sqrt(outputSq / stillCount),
+        bestLag * 1000f / RATE_HZ,
+        (float) Math.sqrt(zeroLagErr / (MOTION_SAMPLES - MAX_LAG_SAMPLES)),
+    };
+  }
+
+  private static float reduction(float[] result) {
+    return 1 - result[JITTER_OUT] / result[JITTER_RAW];
+  }
+
+  private static MotionTrajectory nodAfterStill() {
+    return new MotionTrajectory() {
+      final MotionTrajectory nod = MotionTrajectory.oscillation(1, 30, NOD_FREQUENCY_HZ);
+      final double startS = (double) STILL_SAMPLES / RATE_HZ;
+
+      @Override
+      public void angularVelocityDps(double tS, double[] out) {
+        if (tS < startS)
+          out[0] = out[1] = out[2] = 0;
+        else
+          nod.angularVelocityDps(tS - startS, out);
+      }
+
+      @Override
+      public void linearAccelerationG(double tS, double[] out) {
+        out[0] = out[1] = out[2] = 0;
+      }
+    };
+  }
+}
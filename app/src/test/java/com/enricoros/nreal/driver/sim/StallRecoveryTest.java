@@ -0,0 +1,84 @@
+package com.enricoros.nreal.driver.sim;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hardware-free test of the stall watchdog of the reader: streams from a paced
+ * {@link SimulatedNrealDevice} behind a {@link FaultInjectingTransport}, injects each recoverable
+ * fault a few times, checks that samples keep flowing without a connection error, and finally kills
+ * the device to check that the failure is still detected and reported.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StallRecoveryTest {
+
+  private static final int REPETITIONS = Integer.getInteger("nreal.stall.repetitions", 2);
+  private static final long SETTLE_MS = 500;
+  private static final long DEAD_TIMEOUT_MS = 3000;
+
+  private NrealTestFixture fixture;
+  private FaultInjectingTransport transport;
+
+
+  @Before
+  public void setUp() throws InterruptedException {
+    fixture = new NrealTestFixture();
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.oscillation(2, 40, 0.5), 1000, 36).setNoise(0.05, 0.002, 2);
+    transport = new FaultInjectingTransport(new SimulatedNrealDevice(generator, true));
+    fixture.manager.connectToTransport(transport);
+    fixture.runFor(SETTLE_MS);
+  }
+
+  @After
+  public void tearDown() {
+    fixture.release();
+  }
+
+  @Test
+  public void recoversFromReadErrors() throws InterruptedException {
+    assertRecovers(FaultInjectingTransport.FAULT_READ_ERRORS);
+  }
+
+  @Test
+  public void recoversFromStoppedStream() throws InterruptedException {
+    assertRecovers(FaultInjectingTransport.FAULT_STREAM_STOPPED);
+  }
+
+  @Test
+  public void recoversFromLostInterfaces() throws InterruptedException {
+    assertRecovers(FaultInjectingTransport.FAULT_INTERFACE_LOST);
+  }
+
+  @Test
+  public void reportsDeadDevice() throws InterruptedException {
+    long deadStartNs = System.nanoTime();
+    transport.injectFault(FaultInjectingTransport.FAULT_DEAD);
+    // the manager closes the device after the error
+    assertTrue("Dead device not detected", fixture.await(() -> fixture.connectionErrors > 0, DEAD_TIMEOUT_MS));
+    assertTrue("Dead device not closed", fixture.await(() -> !fixture.manager.isDeviceConnected(), DEAD_TIMEOUT_MS));
+    assertTrue("Detected after " + (fixture.lastConnectionErrorNs - deadStartNs) / 1_000_000 + " ms",
+        fixture.lastConnectionErrorNs - deadStartNs < DEAD_TIMEOUT_MS * 1_000_000L);
+    assertFalse(fixture.manager.isDeviceStreaming());
+  }
+
+
+  private void assertRecovers(int fault) throws InterruptedException {
+    for (int r = 0; r < REPETITIONS; r++) {
+      transport.injectFault(fault);
+      fixture.runFor(SETTLE_MS);
+      assertEquals("Fault still active", FaultInjectingTransport.FAULT_NONE, transport.getFault());
+      long samplesBefore = fixture.receivedSamples;
+      fixture.runFor(SETTLE_MS / 5);
+      assertTrue("No samples after recovery " + r, fixture.receivedSamples > samplesBefore);
+    }
+    assertEquals("Reconnected instead of recovering", 0, fixture.connectionErrors);
+    assertTrue(fixture.manager.isDeviceStreaming());
+  }
+}
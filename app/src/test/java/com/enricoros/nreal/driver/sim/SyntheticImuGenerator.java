@@ -0,0 +1,327 @@
+package com.enricoros.nreal.driver.sim;
+
+import androidx.annotation.NonNull;
+
+import com.enricoros.nreal.driver.ImuStages;
+
+/**
+ * Produces byte-exact 64-byte IMU reports, as the glasses would send them, from a scripted
+ * {@link MotionTrajectory}, while keeping track of the true orientation and sensor values.
+ * <p>
+ * Noise, bias, magnetic disturbances, packet drops and clock drift can be configured. There is no
+ * pacing, so packets are generated as fast as they are requested (far faster than real time).
+ * Not thread safe: one generator per thread.
+ *
+ * @noinspection unused, UnusedReturnValue
+ */
+public class SyntheticImuGenerator {
+
+  public static final int REPORT_SIZE = 64;
+
+  // the inverse of the decoding (ImuStages.Decode)
+  private static final double GYRO_COUNTS_PER_DPS = 1.0 / ImuStages.GYRO_SCALE_DPS;
+  private static final double ACCEL_COUNTS_PER_G = 1.0 / ImuStages.ACCEL_SCALE_G;
+  private static final int INT24_MAX = 0x7FFFFF;
+  private static final int INT24_MIN = -0x800000;
+
+  private final MotionTrajectory trajectory;
+  private final int sampleRateHz;
+  private final long periodNs;
+
+  // configuration
+  private double gyroNoiseDps = 0;
+  private double accelNoiseG = 0;
+  private double magNoiseCounts = 0;
+  private final double[] gyroBiasDps = new double[3];
+  private final double[] accelBiasG = new double[3];
+  private final int[] magCenterCounts = {32768, 32768, 32768};
+  private double magScaleCounts = 1000;
+  private final double[] magFieldWorld = {Math.cos(Math.toRadians(60)), 0, -Math.sin(Math.toRadians(60))};
+  private final double[] magDisturbanceWorld = new double[3];
+  private double magDisturbanceStartS = 0;
+  private double magDisturbanceEndS = 0;
+  private double dropProbability = 0;
+  private double clockDriftPpm = 0;
+  private long deviceClockOffsetNs = 1_000_000_000L;
+
+  // ground truth (orientation is a unit quaternion w, x, y, z rotating body to world)
+  private final double[] q = {1, 0, 0, 0};
+  private final double[] trueGyroDps = new double[3];
+  private final double[] trueAccelG = new double[3];
+  private final double[] trueMag = new double[3];
+  private long trueTimeNs = 0;
+  private long packetIndex = 0;
+  private long droppedPackets = 0;
+
+  // scratch, to avoid allocations per sample
+  private final double[] tmpRate = new double[3];
+  private final double[] tmpLinAcc = new double[3];
+  private final double[] tmpWorld = new double[3];
+
+  // random generator (xorshift64*) with cached Box-Muller pair
+  private long rngState;
+  private double spareGaussian;
+  private boolean hasSpareGaussian = false;
+
+
+  public SyntheticImuGenerator(@NonNull MotionTrajectory trajectory, int sampleRateHz, long seed) {
+    if (sampleRateHz <= 0)
+      throw new IllegalArgumentException("Sample rate must be positive");
+    this.trajectory = trajectory;
+    this.sampleRateHz = sampleRateHz;
+    this.periodNs = 1_000_000_000L / sampleRateHz;
+    this.rngState = seed != 0 ? seed : 0x9E3779B97F4A7C15L;
+  }
+
+  public SyntheticImuGenerator setNoise(double gyroDps, double accelG, double magCounts) {
+    gyroNoiseDps = gyroDps;
+    accelNoiseG = accelG;
+    magNoiseCounts = magCounts;
+    return this;
+  }
+
+  public SyntheticImuGenerator setGyroBias(double xDps, double yDps, double zDps) {
+    gyroBiasDps[0] = xDps;
+    gyroBiasDps[1] = yDps;
+    gyroBiasDps[2] = zDps;
+    return this;
+  }
+
+  public SyntheticImuGenerator setAccelBias(double xG, double yG, double zG) {
+    accelBiasG[0] = xG;
+    accelBiasG[1] = yG;
+    accelBiasG[2] = zG;
+    return this;
+  }
+
+  /**
+   * Hard-iron center and sensitivity (counts per unit field) of the 16-bit magnetometer.
+   */
+  public SyntheticImuGenerator setMagnetometerCalibration(int centerX, int centerY, int centerZ, double countsPerUnit) {
+    magCenterCounts[0] = centerX;
+    magCenterCounts[1] = centerY;
+    magCenterCounts[2] = centerZ;
+    magScaleCounts = countsPerUnit;
+    return this;
+  }
+
+  /**
+   * Adds a world-frame field (relative to the unit earth field) between the given times, e.g. a laptop nearby.
+   */
+  public SyntheticImuGenerator setMagneticDisturbance(double x, double y, double z, double startS, double durationS) {
+    magDisturbanceWorld[0] = x;
+    magDisturbanceWorld[1] = y;
+    magDisturbanceWorld[2] = z;
+    magDisturbanceStartS = startS;
+    magDisturbanceEndS = startS + durationS;
+    return this;
+  }
+
+  public SyntheticImuGenerator setDropProbability(double probability) {
+    dropProbability = probability;
+    return this;
+  }
+
+  /**
+   * Device clock runs faster (positive) or slower than the true time, and starts at an arbitrary uptime.
+   */
+  public SyntheticImuGenerator setClock(double driftPpm, long startUptimeNs) {
+    clockDriftPpm = driftPpm;
+    deviceClockOffsetNs = startUptimeNs;
+    return this;
+  }
+
+
+  /**
+   * Advances the simulation and writes the next report that reaches the host (dropped ones are skipped).
+   *
+   * @param out a buffer of at least 64 bytes
+   */
+  public void next(@NonNull byte[] out) {
+    step();
+    while (dropProbability > 0 && nextUniform() < dropProbability) {
+      droppedPackets++;
+      step();
+    }
+    encode(out);
+  }
+
+  public long getTrueTimeNs() {
+    return trueTimeNs;
+  }
+
+  /**
+   * Uptime, as stamped by the device clock, of the last generated report.
+   */
+  public long getDeviceUptimeNs() {
+    return deviceClockOffsetNs + trueTimeNs + (long) (trueTimeNs * clockDriftPpm * 1e-6);
+  }
+
+  /**
+   * True orientation of the last generated report, as a quaternion (w, x, y, z) rotating body to world.
+   */
+  public void getTrueOrientation(@NonNull float[] out) {
+    out[0] = (float) q[0];
+    out[1] = (float) q[1];
+    out[2] = (float) q[2];
+    out[3] = (float) q[3];
+  }
+
+  public void getTrueAngularVelocityDps(@NonNull float[] out) {
+    copy(trueGyroDps, out);
+  }
+
+  public void getTrueAccelerationG(@NonNull float[] out) {
+    copy(trueAccelG, out);
+  }
+
+  /**
+   * True magnetic field in the body frame, relative to the unit earth field (disturbance included).
+   */
+  public void getTrueMagneticField(@NonNull float[] out) {
+    copy(trueMag, out);
+  }
+
+  public long getPacketCount() {
+    return packetIndex;
+  }
+
+  public long getDroppedPackets() {
+    return droppedPackets;
+  }
+
+  public int getSampleRateHz() {
+    return sampleRateHz;
+  }
+
+  public double getClockDriftPpm() {
+    return clockDriftPpm;
+  }
+
+
+  private void step() {
+    // integrate the orientation over the previous period, using the rate at the start of it
+    if (packetIndex > 0)
+      integrate(trueGyroDps, periodNs * 1e-9);
+    packetIndex++;
+    trueTimeNs += periodNs;
+    double tS = trueTimeNs * 1e-9;
+
+    // angular rate is already in the body frame
+    trajectory.angularVelocityDps(tS, tmpRate);
+    System.arraycopy(tmpRate, 0, trueGyroDps, 0, 3);
+
+    // specific force: (linear acceleration + 1g up), rotated to the body frame
+    trajectory.linearAccelerationG(tS, tmpLinAcc);
+    tmpWorld[0] = tmpLinAcc[0];
+    tmpWorld[1] = tmpLinAcc[1];
+    tmpWorld[2] = tmpLinAcc[2] + 1;
+    rotateWorldToBody(tmpWorld, trueAccelG);
+
+    // earth field (+ disturbance), rotated to the body frame
+    boolean disturbed = tS >= magDisturbanceStartS && tS < magDisturbanceEndS;
+    for (int i = 0; i < 3; i++)
+      tmpWorld[i] = magFieldWorld[i] + (disturbed ? magDisturbanceWorld[i] : 0);
+    rotateWorldToBody(tmpWorld, trueMag);
+  }
+
+  private void encode(byte[] out) {
+    // headers and counters, see NrealDeviceThread.processIMUData()
+    out[0] = 1;
+    out[1] = 2;
+    putLE(out, 2, 500 + (int) (packetIndex & 0x3F), 2);
+    putLE(out, 4, getDeviceUptimeNs(), 8);
+    out[12] = (byte) 0xA0;
+    out[13] = 0x0F;
+    out[14] = 0;
+    out[15] = 0;
+    out[16] = 0;
+    out[17] = 1;
+    for (int i = 0; i < 3; i++)
+      putLE(out, 18 + i * 3, toInt24((trueGyroDps[i] + gyroBiasDps[i] + gyroNoiseDps * nextGaussian()) * GYRO_COUNTS_PER_DPS), 3);
+    out[27] = 0x20;
+    out[28] = 0;
+    out[29] = 0;
+    out[30] = 0;
+    out[31] = 0;
+    out[32] = 1;
+    for (int i = 0; i < 3; i++)
+      putLE(out, 33 + i * 3, toInt24((trueAccelG[i] + accelBiasG[i] + accelNoiseG * nextGaussian()) * ACCEL_COUNTS_PER_G), 3);
+    out[42] = 0;
+    out[43] = (byte) 0x80;
+    out[44] = 0;
+    out[45] = 4;
+    out[46] = 0;
+    out[47] = 0;
+    for (int i = 0; i < 3; i++) {
+      long counts = Math.round(magCenterCounts[i] + trueMag[i] * magScaleCounts + magNoiseCounts * nextGaussian());
+      putLE(out, 48 + i * 2, Math.max(0, Math.min(0xFFFF, counts)), 2);
+    }
+    putLE(out, 54, packetIndex, 4);
+    for (int i = 58; i < REPORT_SIZE; i++)
+      out[i] = 0;
+  }
+
+  private void integrate(double[] rateDps, double dtS) {
+    double wx = Math.toRadians(rateDps[0]), wy = Math.toRadians(rateDps[1]), wz = Math.toRadians(rateDps[2]);
+    double norm = Math.sqrt(wx * wx + wy * wy + wz * wz);
+    if (norm < 1e-12)
+      return;
+    double halfAngle = norm * dtS / 2;
+    double s = Math.sin(halfAngle) / norm;
+    double dw = Math.cos(halfAngle), dx = wx * s, dy = wy * s, dz = wz * s;
+    // q = q * dq (rotation expressed in the body frame)
+    double w = q[0] * dw - q[1] * dx - q[2] * dy - q[3] * dz;
+    double x = q[0] * dx + q[1] * dw + q[2] * dz - q[3] * dy;
+    double y = q[0] * dy - q[1] * dz + q[2] * dw + q[3] * dx;
+    double z = q[0] * dz + q[1] * dy - q[2] * dx + q[3] * dw;
+    double n = Math.sqrt(w * w + x * x + y * y + z * z);
+    q[0] = w / n;
+    q[1] = x / n;
+    q[2] = y / n;
+    q[3] = z / n;
+  }
+
+  private void rotateWorldToBody(double[] v, double[] out) {
+    // out = conj(q) * v * q, expanded as R^T * v
+    double w = q[0], x = q[1], y = q[2], z = q[3];
+    out[0] = (1 - 2 * (y * y + z * z)) * v[0] + 2 * (x * y + w * z) * v[1] + 2 * (x * z - w * y) * v[2];
+    out[1] = 2 * (x * y - w * z) * v[0] + (1 - 2 * (x * x + z * z)) * v[1] + 2 * (y * z + w * x) * v[2];
+    out[2] = 2 * (x * z + w * y) * v[0] + 2 * (y * z - w * x) * v[1] + (1 - 2 * (x * x + y * y)) * v[2];
+  }
+
+  private static int toInt24(double counts) {
+    long c = Math.round(counts);
+    return (int) Math.max(INT24_MIN, Math.min(INT24_MAX, c));
+  }
+
+  private static void putLE(byte[] out, int offset, long value, int bytes) {
+    for (int i = 0; i < bytes; i++)
+      out[offset + i] = (byte) (value >>> (i * 8));
+  }
+
+  private static void copy(double[] from, float[] to) {
+    to[0] = (float) from[0];
+    to[1] = (float) from[1];
+    to[2] = (float) from[2];
+  }
+
+  private double nextUniform() {
+    rngState ^= rngState >>> 12;
+    rngState ^= rngState << 25;
+    rngState ^= rngState >>> 27;
+    return ((rngState * 0x2545F4914F6CDD1DL) >>> 11) * 0x1.0p-53;
+  }
+
+  private double nextGaussian() {
+    if (hasSpareGaussian) {
+      hasSpareGaussian = false;
+      return spareGaussian;
+    }
+    double u1 = nextUniform(), u2 = nextUniform();
+    double r = Math.sqrt(-2 * Math.log(u1 > 0 ? u1 : Double.MIN_VALUE));
+    spareGaussian = r * Math.sin(2 * Math.PI * u2);
+    hasSpareGaussian = true;
+    return r * Math.cos(2 * Math.PI * u2);
+  }
+}
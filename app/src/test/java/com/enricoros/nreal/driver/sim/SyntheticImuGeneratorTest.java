@@ -0,0 +1,118 @@
+package com.enricoros.nreal.driver.sim;
+
+import com.enricoros.nreal.driver.ImuStages;
+import com.enricoros.nreal.driver.report.ImuReport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The configured imperfections of the {@link SyntheticImuGenerator} must show in its reports, as
+ * decoded by the driver: the drop rate in the packet counter, the clock drift in the uptimes, the
+ * noise in the values of a still head, the magnetic disturbance in its window. And generating must
+ * be far faster than the glasses produce reports.
+ */
+public class SyntheticImuGeneratorTest {
+
+  private static final int RATE_HZ = 1000;
+  private static final long PERIOD_NS = 1_000_000_000L / RATE_HZ;
+  private static final int REPORTS = 100_000;
+  private static final double MIN_SPEEDUP = 100;
+
+  private final byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+
+
+  @Test
+  public void dropsFollowTheProbability() {
+    double probability = 0.05;
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.still(), RATE_HZ, 11).setDropProbability(probability);
+    long lastCounter = 0, dropped = 0;
+    for (int i = 0; i < REPORTS; i++) {
+      generator.next(report);
+      long counter = ImuReport.counter2(report);
+      dropped += counter - lastCounter - 1;
+      lastCounter = counter;
+    }
+    assertEquals("Dropped, in the reports", generator.getDroppedPackets(), dropped);
+    // each report is preceded by a geometric number of drops: mean p / (1 - p), variance p / (1 - p)^2
+    double expected = REPORTS * probability / (1 - probability);
+    double sigma = Math.sqrt(REPORTS * probability) / (1 - probability);
+    assertTrue("Dropped " + dropped + ", expected " + expected, Math.abs(dropped - expected) < 4 * sigma);
+  }
+
+  @Test
+  public void uptimesFollowTheClockDrift() {
+    double driftPpm = 250;
+    long startUptimeNs = 123_456_789_000L;
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.still(), RATE_HZ, 12).setClock(driftPpm, startUptimeNs);
+    generator.next(report);
+    long firstUptimeNs = ImuReport.uptimeNs(report);
+    for (int i = 1; i < REPORTS; i++)
+      generator.next(report);
+    long lastUptimeNs = ImuReport.uptimeNs(report);
+    assertEquals("First uptime", startUptimeNs + PERIOD_NS * (1 + driftPpm * 1e-6), firstUptimeNs, 1);
+    double measuredPpm = ((double) (lastUptimeNs - firstUptimeNs) / ((REPORTS - 1) * PERIOD_NS) - 1) * 1e6;
+    assertEquals("Drift (ppm)", driftPpm, measuredPpm, 0.1);
+  }
+
+  @Test
+  public void noiseHasTheConfiguredDeviation() {
+    double gyroDps = 0.5, accelG = 0.01, magCounts = 5;
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.still(), RATE_HZ, 13).setNoise(gyroDps, accelG, magCounts);
+    double[] sums = new double[3], squares = new double[3];
+    for (int i = 0; i < REPORTS; i++) {
+      generator.next(report);
+      double[] values = {ImuReport.angVelX(report) * ImuStages.GYRO_SCALE_DPS, ImuReport.accelX(report) * ImuStages.ACCEL_SCALE_G, ImuReport.magX(report)};
+      for (int k = 0; k < 3; k++) {
+        sums[k] += values[k];
+        squares[k] += values[k] * values[k];
+      }
+    }
+    double[] expected = {gyroDps, accelG, magCounts};
+    String[] names = {"Gyro", "Accel", "Mag"};
+    for (int k = 0; k < 3; k++) {
+      double mean = sums[k] / REPORTS;
+      double deviation = Math.sqrt(squares[k] / REPORTS - mean * mean);
+      // the sampling error of the deviation is ~1/sqrt(2 N) = 0.2%, plus the quantization for the magnetometer
+      assertEquals(names[k] + " noise", expected[k], deviation, expected[k] * 0.03);
+    }
+  }
+
+  @Test
+  public void disturbanceShowsInItsWindow() {
+    double fieldX = 0.5, countsPerUnit = 1000;
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.still(), RATE_HZ, 14)
+        .setMagnetometerCalibration(32768, 32768, 32768, countsPerUnit).setMagneticDisturbance(fieldX, 0, 0, 1.0, 0.5);
+    double inside = 0, outside = 0;
+    int insideCount = 0, outsideCount = 0;
+    for (int i = 0; i < 2 * RATE_HZ; i++) {
+      generator.next(report);
+      double tS = generator.getTrueTimeNs() * 1e-9;
+      if (tS >= 1.0 && tS < 1.5) {
+        inside += ImuReport.magX(report);
+        insideCount++;
+      } else {
+        outside += ImuReport.magX(report);
+        outsideCount++;
+      }
+    }
+    assertEquals("Samples in the window", RATE_HZ / 2, insideCount);
+    // the head is still, so the world x field is the body x field
+    assertEquals("Disturbance (counts)", fieldX * countsPerUnit, inside / insideCount - outside / outsideCount, 1);
+  }
+
+  @Test
+  public void fasterThanRealTime() {
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.oscillation(2, 40, 0.5), RATE_HZ, 15)
+        .setNoise(0.05, 0.002, 2).setDropProbability(0.001).setClock(20, 1_000_000_000L);
+    for (int i = 0; i < REPORTS; i++) // warm-up
+      generator.next(report);
+    long startNs = System.nanoTime();
+    for (int i = 0; i < REPORTS; i++)
+      generator.next(report);
+    double speedup = (double) REPORTS * PERIOD_NS / (System.nanoTime() - startNs);
+    assertTrue("Only " + speedup + "x real time", speedup >= MIN_SPEEDUP);
+  }
+}
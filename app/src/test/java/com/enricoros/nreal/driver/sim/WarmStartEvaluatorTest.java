@@ -0,0 +1,121 @@
+package com.enricoros.nreal.driver.sim;
+
+import com.enricoros.nreal.driver.ImuStages;
+import com.enricoros.nreal.driver.data.MagnetometerPreprocessor;
+import com.enricoros.nreal.driver.data.OneEuroFilter;
+import com.enricoros.nreal.driver.data.ProcessingSnapshot;
+import com.enricoros.nreal.driver.report.ImuReport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Time to stable output after a reconnection, cold vs warm started from a {@link ProcessingSnapshot}.
+ * A first session calibrates on synthetic data with the processing chain of NrealDeviceThread and
+ * snapshots it at the end, then the same device reconnects after a gap and the output is "stable"
+ * from the first sample after which the magnetometer (normalized) and the accelerometer stay within
+ * tolerance of the truth.
+ * <p>
+ * The restored calibration is enough, with the low-pass primed from the first sample: restoring the
+ * filter states as well was measured to be no better even after a 50 ms gap (0 vs 4-8 ms), as the
+ * head moves during the gap, so the snapshot does not keep them.
+ */
+public class WarmStartEvaluatorTest {
+
+  private static final int RATE_HZ = 1000;
+  private static final float MAG_TOLERANCE = 0.1f;
+  private static final float ACCEL_TOLERANCE_G = 0.05f;
+  private static final double FIRST_SESSION_S = 30;
+  private static final double SECOND_SESSION_S = 5;
+  private static final double MAX_WARM_STABLE_S = 0.02;
+  private static final double MIN_COLD_STABLE_S = 1;
+
+
+  @Test
+  public void restoredCalibrationIsStableRightAway() {
+    for (double gapS : new double[]{0.05, 0.2, 2}) {
+      double coldS = timeToStable(false, gapS);
+      double warmS = timeToStable(true, gapS);
+      assertTrue("Cold start after a " + gapS + " s gap: stable after " + coldS + " s", coldS < 0 || coldS > MIN_COLD_STABLE_S);
+      assertTrue("Warm start after a " + gapS + " s gap: stable after " + warmS + " s", warmS >= 0 && warmS <= MAX_WARM_STABLE_S);
+    }
+  }
+
+
+  /**
+   * @param gapS seconds of motion between the end of the first session and the reconnection
+   * @return seconds to stable output, or -1 if never stable
+   */
+  private static double timeToStable(boolean restore, double gapS) {
+    SyntheticImuGenerator generator = new SyntheticImuGenerator(MotionTrajectory.sum(MotionTrajectory.oscillation(0, 150, 0.13),
+        MotionTrajectory.sum(MotionTrajectory.oscillation(1, 150, 0.21), MotionTrajectory.oscillation(2, 150, 0.29))), RATE_HZ, 34)
+        .setNoise(0.05, 0.002, 3)
+        .setMagnetometerCalibration(31000, 34500, 33200, 900);
+    Chain chain = new Chain();
+
+    // first session, then snapshot (serialized and parsed, as through the file)
+    for (int i = 0; i < FIRST_SESSION_S * RATE_HZ; i++)
+      chain.process(generator);
+    ProcessingSnapshot snapshot = ProcessingSnapshot.parse(ProcessingSnapshot.capture(generator.getDeviceUptimeNs(), chain.magnetometerPreprocessor).serialize());
+    assertNotNull("Snapshot round trip", snapshot);
+
+    // the head keeps moving while disconnected
+    byte[] report = chain.report;
+    for (int i = 0; i < gapS * RATE_HZ; i++)
+      generator.next(report);
+
+    // reconnection: new processing objects
+    chain = new Chain();
+    if (restore)
+      assertEquals("calibration", snapshot.restore(chain.magnetometerPreprocessor));
+
+    int samples = (int) (SECOND_SESSION_S * RATE_HZ);
+    int lastUnstable = -1;
+    for (int i = 0; i < samples; i++)
+      if (!chain.process(generator))
+        lastUnstable = i;
+    if (lastUnstable == samples - 1)
+      return -1;
+    return (lastUnstable + 1) / (double) RATE_HZ;
+  }
+
+  // same chain and parameters as the standard stages of NrealDeviceThread (ImuStages)
+  private static final class Chain {
+    final MagnetometerPreprocessor magnetometerPreprocessor = new MagnetometerPreprocessor(100.f, 200);
+    final OneEuroFilter accelSmoother = new OneEuroFilter(3, 1f, 5f, 1f);
+    final byte[] report = new byte[SyntheticImuGenerator.REPORT_SIZE];
+    final int[] magRaw = new int[3];
+    final float[] accel = new float[3];
+    final float[] trueAccel = new float[3];
+    final float[] trueMag = new float[3];
+    long lastUptimeNs;
+
+    /**
+     * @return true if the output is within tolerance of the truth
+     */
+    boolean process(SyntheticImuGenerator generator) {
+      generator.next(report);
+      long uptimeNs = ImuReport.uptimeNs(report);
+      float dT = lastUptimeNs == 0 ? 1f / RATE_HZ : (uptimeNs - lastUptimeNs) * ImuStages.TICK_SCALE_S;
+      lastUptimeNs = uptimeNs;
+      accel[0] = ImuReport.accelX(report) * ImuStages.ACCEL_SCALE_G;
+      accel[1] = ImuReport.accelY(report) * ImuStages.ACCEL_SCALE_G;
+      accel[2] = ImuReport.accelZ(report) * ImuStages.ACCEL_SCALE_G;
+      magRaw[0] = ImuReport.magX(report);
+      magRaw[1] = ImuReport.magY(report);
+      magRaw[2] = ImuReport.magZ(report);
+      float[] a = accelSmoother.process(accel, dT);
+      float[] mag = magnetometerPreprocessor.process(magRaw, dT);
+
+      generator.getTrueAccelerationG(trueAccel);
+      generator.getTrueMagneticField(trueMag);
+      for (int axis = 0; axis < 3; axis++)
+        if (Math.abs(a[axis] - trueAccel[axis]) > ACCEL_TOLERANCE_G || Math.abs(mag[axis] - trueMag[axis]) > MAG_TOLERANCE)
+          return false;
+      return true;
+    }
+  }
+}